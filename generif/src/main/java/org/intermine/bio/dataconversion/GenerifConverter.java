@@ -16,24 +16,21 @@ import java.io.Reader;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
-import org.apache.tools.ant.BuildException;
 import org.intermine.dataconversion.ItemWriter;
 import org.intermine.metadata.Model;
 import org.intermine.metadata.StringUtil;
 import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.util.FormattedTextParser;
 import org.intermine.xml.full.Item;
 
 /**
  *
  * @author sc
  */
-public class GenerifConverter extends BioFileConverter
+public class GenerifConverter extends AsyncBioFileConverter
 {
     private static final Logger LOG = Logger.getLogger(GenerifConverter.class);
 
@@ -44,8 +41,13 @@ public class GenerifConverter extends BioFileConverter
     private Set<String> taxonIds = new HashSet<String>();
 
     private Map<String, String> orgItems = new HashMap<String, String>();
-    private Map<String, String> pubItems = new HashMap<String, String>();
-    private Map<String, String> geneItems = new HashMap<String, String>();
+    // identifier to refId, within the heap budget
+    private SpillingMap pubItems = new SpillingMap("generif-publications", Long.MAX_VALUE, null);
+    private SpillingMap geneItems = new SpillingMap("generif-genes", Long.MAX_VALUE, null);
+    // the genes loaded by the GFF source, genes not in it are dropped, null to keep all genes
+    private String knownGenesFiles = null;
+    private double knownGenesFalsePositives = 0;
+    private KnownGenes knownGenes = null;
 
     /**
      * Constructor
@@ -71,6 +73,44 @@ public class GenerifConverter extends BioFileConverter
         }
     }
 
+    /**
+     * Only load GeneRIFs of genes that are also loaded by the GFF source, GeneRIFs of other
+     * genes are dropped and counted rather than stored with Genes nothing else refers to.
+     * Organisms without a file are not filtered.
+     *
+     * @param files space separated taxonId:path, the path a GFF3 file, a file listing one
+     * identifier a line or a directory of them
+     */
+    public void setGenerifKnownGenes(String files) {
+        this.knownGenesFiles = files;
+        LOG.info("Setting known genes to " + files);
+    }
+
+    /**
+     * Hold the known genes in a Bloom filter with this false positive rate rather than
+     * exactly, a few unknown genes are then kept.
+     *
+     * @param rate the false positive rate, e.g. 0.01, or 0 to hold the genes exactly
+     */
+    public void setGenerifKnownGenesFalsePositives(String rate) {
+        this.knownGenesFalsePositives = Double.parseDouble(rate);
+        LOG.info("Setting known genes false positive rate to " + rate);
+    }
+
+    /**
+     * Keep the genes and publications seen within a heap budget, half each, those used least
+     * recently are moved to disk.  Unlimited if not set.
+     *
+     * @param heapBudget bytes, or with k, m or g, e.g. 512m
+     * @throws IOException if genes or publications over the budget can't be moved to disk
+     */
+    public void setGenerifHeapBudget(String heapBudget) throws IOException {
+        long budget = SpillingMap.parseSize(heapBudget);
+        pubItems.setHeapBudget(budget / 2);
+        geneItems.setHeapBudget(budget / 2);
+        LOG.info("Setting heap budget to " + heapBudget);
+    }
+
     /**
      *
      *
@@ -108,12 +148,8 @@ public class GenerifConverter extends BioFileConverter
      */
     private void processFile(Reader reader)
         throws IOException, ObjectStoreException {
-        Iterator<?> tsvIter;
-        try {
-            tsvIter = FormattedTextParser.parseTabDelimitedReader(reader);
-        } catch (Exception e) {
-            throw new BuildException("cannot parse file: " + getCurrentFile(), e);
-        }
+        // taxon, gene, PubMed id, time stamp and text
+        TsvReader tsv = new TsvReader(reader, 0, 1, 2, 3, 4);
 
         if (taxonIds.isEmpty()) {
             LOG.warn("generif.organisms property not set in project XML file");
@@ -123,30 +159,31 @@ public class GenerifConverter extends BioFileConverter
         if (rslv == null) {
             rslv = IdResolverService.getIdResolverByOrganism(taxonIds);
         }
+        if (knownGenesFiles != null && knownGenes == null) {
+            knownGenes = new KnownGenes(knownGenesFiles, knownGenesFalsePositives);
+        }
 
         String pid = null;
 
         int lineNumber = 0;
 
-        while (tsvIter.hasNext()) {
-            String[] line = (String[]) tsvIter.next();
-
+        while (tsv.next()) {
             // this can be omitted
             if (lineNumber == 0) {
-                checkHeader(line);
+                checkHeader(tsv.toArray());
                 lineNumber++;
                 continue;
             }
 
-            String taxid = line[0];
-            String geneId = line [1];
-            String pubMedId = line [2];
-            String timeStamp = line[3];
-            String annotation = line [4];
-
+            // most lines are for other organisms, so their other columns are never made
+            String taxid = tsv.get(0);
             if (!taxonIds.contains(taxid)) {
                 continue;
             }
+            String geneId = tsv.get(1);
+            String pubMedId = tsv.get(2);
+            String timeStamp = tsv.get(3);
+            String annotation = tsv.get(4);
 
             int resCount = rslv.countResolutions(taxid, geneId);
             if (resCount != 1) {
@@ -164,21 +201,35 @@ public class GenerifConverter extends BioFileConverter
 
 
             pid = rslv.resolveId(taxid, geneId).iterator().next();
+            if (knownGenes != null && !knownGenes.isKnown(taxid, pid)) {
+                continue;
+            }
             LOG.info("READING " + taxid + ": " + pid + "<->" + geneId + "|" + pubMedId + "|"
                     + timeStamp + "--" + annotation);
 
             Item ann = createGeneRIF(annotation, timeStamp);
-            createBioEntity(pid, "Gene");
-            createPublication(pubMedId);
-            ann.setReference("gene", geneItems.get(pid));
+            ann.setReference("gene", createBioEntity(pid, "Gene"));
             ann.setReference("organism", orgItems.get(taxid));
-            ann.setReference("publication", pubItems.get(pubMedId));
+            ann.setReference("publication", createPublication(pubMedId));
             store(ann);
 
             lineNumber++;
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws Exception {
+        if (knownGenes != null) {
+            knownGenes.logDropped(LOG);
+        }
+        pubItems.close();
+        geneItems.close();
+        super.close();
+    }
+
     /**
      * @param line
      */
@@ -220,36 +271,48 @@ public class GenerifConverter extends BioFileConverter
      *
      * @param primaryId the primaryIdentifier
      * @param type the type of bioentity (gene, exon..)
+     * @return the refId of the bioentity, null if not a gene
+     * @throws IOException if the genes on disk can't be read or written
      * @throws ObjectStoreException
      */
-    private void createBioEntity(String primaryId, String type) throws ObjectStoreException {
+    private String createBioEntity(String primaryId, String type)
+        throws IOException, ObjectStoreException {
         // doing only genes here
         Item bioentity = null;
 
+        String refId = null;
         if ("Gene".equals(type)) {
-            if (!geneItems.containsKey(primaryId)) {
+            refId = geneItems.get(primaryId);
+            if (refId == null) {
                 bioentity = createItem("Gene");
                 bioentity.setAttribute("primaryIdentifier", primaryId);
                 store(bioentity);
-                geneItems.put(primaryId, bioentity.getIdentifier());
+                refId = bioentity.getIdentifier();
+                geneItems.put(primaryId, refId);
             }
         }
+        return refId;
     }
     /**
      * Create and store a Publication item on the first time called.
      *
      * @param primaryId the primaryIdentifier
-     * @param type gene or exon
+     * @return the refId of the publication
+     * @throws IOException if the publications on disk can't be read or written
      * @throws ObjectStoreException
      */
-    private void createPublication(String primaryId) throws ObjectStoreException {
+    private String createPublication(String primaryId)
+        throws IOException, ObjectStoreException {
         Item pub = null;
-        if (!pubItems.containsKey(primaryId)) {
+        String refId = pubItems.get(primaryId);
+        if (refId == null) {
             pub = createItem("Publication");
             pub.setAttribute("pubMedId", primaryId);
             store(pub);
-            pubItems.put(primaryId, pub.getIdentifier());
+            refId = pub.getIdentifier();
+            pubItems.put(primaryId, refId);
         }
+        return refId;
     }
 
 
@@ -0,0 +1,144 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2011 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.intermine.model.bio.Gene;
+import org.intermine.model.bio.HomologGroup;
+import org.intermine.model.bio.HomologGroupMember;
+
+/**
+ * Expands a HomologGroup into the pairs InparanoidHomologsConverter stores as Homologs when
+ * it isn't storing groups: every gene of the organism1 side with every gene of the
+ * organism2 side as orthologs, and every two genes of the organism1 side as paralogs.  Pairs are made on demand, so
+ * a family is held in the database once however many pairs it has.
+ */
+public final class HomologGroupPairs
+{
+    private HomologGroupPairs() {
+        // don't instantiate
+    }
+
+    /**
+     * Classify one side of a cluster.
+     * @param members the number of genes of the organism in the cluster
+     * @return "one" or "many"
+     */
+    public static String classify(int members) {
+        return (members > 1) ? "many" : "one";
+    }
+
+    /**
+     * The members are split by their side of the group rather than by organism, both sides
+     * may be of the same organism.  The relationship is that of the group, counted before any
+     * genes were dropped, and genes don't pair with themselves, as when storing Homologs.
+     *
+     * @param group the group
+     * @return the ortholog and paralog pairs of the group
+     */
+    public static List<Pair> getPairs(HomologGroup group) {
+        List<HomologGroupMember> members1 = new ArrayList<HomologGroupMember>();
+        List<HomologGroupMember> members2 = new ArrayList<HomologGroupMember>();
+        for (HomologGroupMember member : group.getMembers()) {
+            if (Integer.valueOf(1).equals(member.getSide())) {
+                members1.add(member);
+            } else {
+                members2.add(member);
+            }
+        }
+        String[] classes = StringUtils.splitByWholeSeparator(group.getRelationship(), "-to-");
+        String class1 = classes[0];
+        String class2 = classes[1];
+
+        List<Pair> pairs = new ArrayList<Pair>();
+        for (HomologGroupMember member1 : members1) {
+            for (HomologGroupMember member2 : members2) {
+                if (!isSameGene(member1.getGene(), member2.getGene())) {
+                    pairs.add(new Pair(member1.getGene(), member2.getGene(), "ortholog",
+                            class1 + "-to-" + class2));
+                }
+            }
+            for (HomologGroupMember member2 : members1) {
+                if (!isSameGene(member1.getGene(), member2.getGene())) {
+                    pairs.add(new Pair(member1.getGene(), member2.getGene(), "paralog",
+                            class1 + "-to-" + class1));
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Genes are the same if they have the same identifier, whether or not they are the same
+     * object.
+     */
+    private static boolean isSameGene(Gene gene1, Gene gene2) {
+        if (gene1.getPrimaryIdentifier() == null || gene2.getPrimaryIdentifier() == null) {
+            return gene1.getId() != null && gene1.getId().equals(gene2.getId());
+        }
+        return gene1.getPrimaryIdentifier().equals(gene2.getPrimaryIdentifier());
+    }
+
+    /**
+     * A pair of genes of a group, as would be stored in a Homolog.
+     */
+    public static class Pair
+    {
+        private final Gene gene1;
+        private final Gene gene2;
+        private final String type;
+        private final String relationship;
+
+        /**
+         * @param gene1 the first gene
+         * @param gene2 the second gene
+         * @param type ortholog or paralog
+         * @param relationship e.g. one-to-many
+         */
+        public Pair(Gene gene1, Gene gene2, String type, String relationship) {
+            this.gene1 = gene1;
+            this.gene2 = gene2;
+            this.type = type;
+            this.relationship = relationship;
+        }
+
+        /**
+         * @return the first gene
+         */
+        public Gene getGene1() {
+            return gene1;
+        }
+
+        /**
+         * @return the second gene
+         */
+        public Gene getGene2() {
+            return gene2;
+        }
+
+        /**
+         * @return ortholog or paralog
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return e.g. one-to-many
+         */
+        public String getRelationship() {
+            return relationship;
+        }
+    }
+}
@@ -10,10 +10,20 @@ package org.intermine.bio.dataconversion;
  *
  */
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,26 +33,45 @@ import org.apache.tools.ant.BuildException;
 import org.intermine.dataconversion.ItemWriter;
 import org.intermine.metadata.Model;
 import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.util.FormattedTextParser;
 import org.intermine.xml.full.Item;
+import org.intermine.xml.full.ItemFactory;
 
 
 /**
  * 
  * @author
  */
-public class InparanoidHomologsConverter extends BioFileConverter
+public class InparanoidHomologsConverter extends AsyncBioFileConverter
 {
     //
     private static final String DATASET_TITLE = "Phytozome Homologs";
     private static final String DATA_SOURCE_NAME = "Phytozome";
     private static final Logger LOG =
         Logger.getLogger(InparanoidHomologsConverter.class);
+    // only used by the thread processing the files
     private HashMap<Integer,String> organismMap = new HashMap<Integer,String>();
-    private HashMap<String,String> geneMap = new HashMap<String,String>();
+    // the Genes, Homologs and groups, numbered in file order as they are stored
+    private final ItemIdAllocator ids;
+    // workers create items without identifiers
+    private final ItemFactory itemFactory;
+    // gene name to refId, only used by the thread storing the items
+    private SpillingMap geneMap = new SpillingMap("inparanoid-genes", Long.MAX_VALUE, null);
     Pattern filePattern;
-    int orthoRegistered;
-    int paraRegistered;
+    // items stored at a time, and batches held per file, when converting with workers
+    private static final int BATCH_SIZE = 1000;
+    private static final int QUEUED_BATCHES = 100;
+    private static final List<Item> END = new ArrayList<Item>();
+    // store each cluster once as a HomologGroup rather than as all its pairs
+    private boolean groups = false;
+    private int threads = 1;
+    private ExecutorService executor = null;
+    // the files being converted by workers whose items aren't all stored, in the order they
+    // were processed
+    private Queue<FileTask> tasks = new ArrayDeque<FileTask>();
+    // the genes loaded by the GFF source, genes not in it are dropped, null to keep all genes
+    private String knownGenesFiles = null;
+    private double knownGenesFalsePositives = 0;
+    private KnownGenes knownGenes = null;
     
     /**
      * Constructor
@@ -52,8 +81,74 @@ public class InparanoidHomologsConverter extends BioFileConverter
     public InparanoidHomologsConverter(ItemWriter writer, Model model) {
         super(writer, model, DATA_SOURCE_NAME, DATASET_TITLE);
         filePattern = Pattern.compile("(\\d+)");
-        orthoRegistered = 0;
-        paraRegistered = 0;
+        ids = new ItemIdAllocator(model, 1);
+        itemFactory = new ItemFactory(model);
+        for (String className : new String[] {"Gene", "Homolog", "HomologGroup",
+            "HomologGroupMember"}) {
+            ids.addClass(className, alias(className));
+        }
+    }
+
+    /**
+     * If true, store each InParanoid cluster as one HomologGroup with its members and their
+     * bootstrap scores, instead of a Homolog for every pair of genes in the cluster.  Use
+     * HomologGroupPairs to get the pairs of a group.
+     *
+     * @param groups true to store HomologGroups
+     */
+    public void setInparanoidHomologsGroups(String groups) {
+        this.groups = Boolean.parseBoolean(groups);
+        LOG.info("Setting HomologGroups to " + this.groups);
+    }
+
+    /**
+     * Convert the files with this many threads.  Each file is read and turned into items by a
+     * worker, while the items of the files before it are stored, in the order of the files, as
+     * the next files are processed and then in close().  The items are given their identifiers
+     * and genes as they are stored, so are the same whichever worker converts which file.  The
+     * default of 1 converts each file as it is processed.
+     *
+     * @param threads the number of files to convert at once
+     */
+    public void setInparanoidHomologsThreads(String threads) {
+        this.threads = Integer.parseInt(threads);
+        LOG.info("Setting threads to " + this.threads);
+    }
+
+    /**
+     * Only load genes that are also loaded by the GFF source, the other genes of a cluster
+     * are dropped and counted rather than stored as Genes nothing else refers to.  Organisms
+     * without a file are not filtered.
+     *
+     * @param files space separated taxonId:path, the path a GFF3 file, a file listing one
+     * identifier a line or a directory of them
+     */
+    public void setInparanoidHomologsKnownGenes(String files) {
+        this.knownGenesFiles = files;
+        LOG.info("Setting known genes to " + files);
+    }
+
+    /**
+     * Hold the known genes in a Bloom filter with this false positive rate rather than
+     * exactly, a few unknown genes are then kept.
+     *
+     * @param rate the false positive rate, e.g. 0.01, or 0 to hold the genes exactly
+     */
+    public void setInparanoidHomologsKnownGenesFalsePositives(String rate) {
+        this.knownGenesFalsePositives = Double.parseDouble(rate);
+        LOG.info("Setting known genes false positive rate to " + rate);
+    }
+
+    /**
+     * Keep the genes seen within a heap budget, those used least recently are moved to disk.
+     * Unlimited if not set.
+     *
+     * @param heapBudget bytes, or with k, m or g, e.g. 512m
+     * @throws IOException if genes over the budget can't be moved to disk
+     */
+    public void setInparanoidHomologsHeapBudget(String heapBudget) throws IOException {
+        geneMap.setHeapBudget(SpillingMap.parseSize(heapBudget));
+        LOG.info("Setting heap budget to " + heapBudget);
     }
 
     /**
@@ -91,93 +186,451 @@ public class InparanoidHomologsConverter extends BioFileConverter
           }
         }
 
-        Iterator<?> tsvIter;                             
-        try {                                            
-          tsvIter = FormattedTextParser.parseTabDelimitedReader(reader);
-        } catch (Exception e) {                                           
-          throw new BuildException("cannot parse file: " + getCurrentFile(), e);
+        if (knownGenesFiles != null && knownGenes == null) {
+          knownGenes = new KnownGenes(knownGenesFiles, knownGenesFalsePositives);
         }
 
+        // resolve the organisms once for the file
+        FileTask task = new FileTask(theFile, taxonId[0].toString(), organismMap.get(taxonId[0]),
+            taxonId[1].toString(), organismMap.get(taxonId[1]), threads > 1);
+        if (threads > 1) {
+          // the reader is closed when we return, so the worker opens the file again
+          if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads);
+          }
+          tasks.add(task);
+          executor.execute(task);
+          // store what the workers have converted so far
+          writeBatches(false);
+          return;
+        }
+        convert(task, reader);
+        task.log();
+      }
+    }
+
+    /**
+     * Store the items of the files converted by workers, one file after another.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws Exception {
+        try {
+            writeBatches(true);
+            if (knownGenes != null) {
+                knownGenes.logDropped(LOG);
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            geneMap.close();
+        }
+        super.close();
+    }
+
+    /**
+     * Store the batches of items the workers have converted, one file after another.
+     *
+     * @param wait true to wait for the workers to finish, false to store the batches ready
+     */
+    private void writeBatches(boolean wait) throws InterruptedException {
+        while (!tasks.isEmpty()) {
+            FileTask task = tasks.peek();
+            List<Item> batch = wait ? task.batches.take() : task.batches.poll();
+            if (batch == null) {
+                return;
+            }
+            if (batch == END) {
+                tasks.remove();
+                if (task.error != null) {
+                    throw new BuildException("Failed to convert " + task.file, task.error);
+                }
+                task.log();
+                continue;
+            }
+            for (Item item : batch) {
+                write(task, item);
+            }
+        }
+    }
+
+    /**
+     * Convert one file, the items are passed to the task to store.
+     */
+    private void convert(FileTask task, Reader reader) {
+        // cluster, score and the genes of each organism
+        TsvReader tsv = new TsvReader(reader, 0, 1, 2, 3);
         int lineNumber = 0;
 
-        while (tsvIter.hasNext()) {
-          String[] fields = (String[]) tsvIter.next();
-          String id = fields[0];
-	  String score = fields[1];
-          String genes1 = fields[2];
-          String genes2 = fields[3];
+        while (next(task, tsv)) {
+          Cluster cluster = parseCluster(task, tsv);
 
-          int field1Ctr = genes1.split(" ").length;
-          int field2Ctr = genes2.split(" ").length;
-          String class1 = (field1Ctr>3)?"many":"one";
-          String class2 = (field2Ctr>3)?"many":"one";
-          //String groupName = taxonId[0].toString()+"_"+taxonId[1].toString()+"_"+id;
-	  String groupName = id;
+          if (groups) {
+            registerGroup(task, cluster);
+            lineNumber++;
+            continue;
+          }
 
-	  orthoRegistered += registerPairs(groupName,genes1,taxonId[0],genes2,taxonId[1],class1+"-to-"+class2,score,"ortholog");
-          paraRegistered += registerPairs(groupName,genes1,taxonId[0],genes1,taxonId[0],class1+"-to-"+class1,score,"paralog");
+          String organism1 = task.organism1;
+          String organism2 = task.organism2;
+
+	  task.orthoRegistered += registerPairs(task,cluster,cluster.genes1,organism1,
+              cluster.genes2,organism2,cluster.class1+"-to-"+cluster.class2,"ortholog");
+          task.paraRegistered += registerPairs(task,cluster,cluster.genes1,organism1,
+              cluster.genes1,organism1,cluster.class1+"-to-"+cluster.class1,"paralog");
 
           lineNumber++;
 
           if ( (lineNumber%5000)==0 ) {
-            LOG.info("Processed "+lineNumber+" lines and registered "+orthoRegistered+" orthologs and "+paraRegistered+" paralogs...");
+            LOG.info(task.file.getName()+": processed "+lineNumber+" lines and registered "+task.orthoRegistered+" orthologs and "+task.paraRegistered+" paralogs...");
           }
         }
-      }
-      LOG.info("Registered "+orthoRegistered+" orthologs and "+paraRegistered+" paralogs.");
+        task.flush();
     }
-    private int registerPairs(String groupName,String g1,Integer p1,String g2,Integer p2,String relationship,String score,String type) {
-        return registerPairs(groupName,g1,p1.toString(),g2,p2.toString(),relationship,score,type);
-      }
-    private int registerPairs(String groupName,String g1,String p1,String g2,String p2,String relationship,String score,String type) {
-        String[] fields1 = g1.split(" ");
-        String[] fields2 = g2.split(" ");
+
+    private boolean next(FileTask task, TsvReader tsv) {
+        try {
+          return tsv.next();
+        } catch (IOException e) {
+          throw new BuildException("cannot parse file: " + task.file, e);
+        }
+    }
+
+    /**
+     * Tokenise the genes of the current line once, only the known genes are kept.
+     */
+    private Cluster parseCluster(FileTask task, TsvReader tsv) {
+        Cluster cluster = new Cluster();
+        //String groupName = taxonId[0].toString()+"_"+taxonId[1].toString()+"_"+id;
+        cluster.groupName = tsv.get(0);
+        cluster.score = tsv.get(1);
+        if (groups) {
+            // the genes of each organism are listed with the bootstrap score of each gene,
+            // e.g. "AT1G01010.1 1.000 AT1G01020.1 0.567"
+            List<String[]> members1 = parseMembers(tsv.get(2));
+            List<String[]> members2 = parseMembers(tsv.get(3));
+            // the relationship is that of the cluster, whichever genes are dropped
+            cluster.class1 = HomologGroupPairs.classify(members1.size());
+            cluster.class2 = HomologGroupPairs.classify(members2.size());
+            cluster.members1 = filterKnown(task.taxonId1, members1);
+            cluster.members2 = filterKnown(task.taxonId2, members2);
+        } else {
+            String[] tokens1 = StringUtils.split(tsv.get(2), ' ');
+            String[] tokens2 = StringUtils.split(tsv.get(3), ' ');
+            // the relationship is that of the cluster, whichever genes are dropped
+            cluster.class1 = (tokens1.length>3)?"many":"one";
+            cluster.class2 = (tokens2.length>3)?"many":"one";
+            cluster.genes1 = filterKnown(task.taxonId1, tokens1);
+            cluster.genes2 = filterKnown(task.taxonId2, tokens2);
+        }
+        return cluster;
+    }
+
+    /**
+     * Store a cluster as a HomologGroup with its members and their bootstrap scores.
+     */
+    private void registerGroup(FileTask task, Cluster cluster) {
+        String organism1 = task.organism1;
+        String organism2 = task.organism2;
+
+        Item group = task.createItem("HomologGroup");
+        group.setAttribute("groupName", cluster.groupName);
+        group.setAttribute("bootscore", cluster.score);
+        group.setAttribute("relationship", cluster.class1 + "-to-" + cluster.class2);
+        group.setReference("organism1", organism1);
+        group.setReference("organism2", organism2);
+        task.store(group);
+        registerMembers(task, cluster.members1, organism1, "1");
+        registerMembers(task, cluster.members2, organism2, "2");
+        task.groupsRegistered++;
+    }
+
+    /**
+     * Store the members of one side of a group, 1 for organism1 and 2 for organism2.  They
+     * are given the group as they are stored, after it.
+     */
+    private void registerMembers(FileTask task, List<String[]> members, String organism,
+            String side) {
+        for (String[] member : members) {
+            Item o = task.createItem("HomologGroupMember");
+            o.setAttribute("side", side);
+            o.setReference("gene", member[0]);
+            o.setReference("organism", organism);
+            if (member[1] != null) {
+                o.setAttribute("bootscore", member[1]);
+            }
+            task.store(o);
+        }
+    }
+
+    /**
+     * @return the genes of a cluster with their bootstrap scores, null if a gene has no score
+     */
+    private List<String[]> parseMembers(String genes) {
+        String[] tokens = StringUtils.split(genes, ' ');
+        boolean scored = isScored(tokens);
+        List<String[]> members = new ArrayList<String[]>();
+        for (int i = 0; i < tokens.length; i += scored ? 2 : 1) {
+            members.add(new String[] {tokens[i], scored ? tokens[i + 1] : null});
+        }
+        return members;
+    }
+
+    /**
+     * @return true if genes and their scores alternate
+     */
+    private boolean isScored(String[] tokens) {
+        // gene identifiers may be numbers so check them all
+        boolean scored = tokens.length % 2 == 0;
+        for (int i = 1; scored && i < tokens.length; i += 2) {
+            scored = isScore(tokens[i]);
+        }
+        return scored;
+    }
+
+    /**
+     * Only the genes are looked up, the score of a known gene is kept with it and that of an
+     * unknown gene dropped with it.
+     *
+     * @return the tokens of the genes that are known, all of them if there are no known genes
+     */
+    private String[] filterKnown(String taxonId, String[] tokens) {
+        if (knownGenes == null) {
+            return tokens;
+        }
+        boolean scored = isScored(tokens);
+        List<String> known = new ArrayList<String>(tokens.length);
+        for (int i = 0; i < tokens.length; i += scored ? 2 : 1) {
+            if (knownGenes.isKnown(taxonId, tokens[i])) {
+                known.add(tokens[i]);
+                if (scored) {
+                    known.add(tokens[i + 1]);
+                }
+            }
+        }
+        return (known.size() == tokens.length) ? tokens : known.toArray(new String[known.size()]);
+    }
+
+    /**
+     * @return the members whose genes are known, all of them if there are no known genes
+     */
+    private List<String[]> filterKnown(String taxonId, List<String[]> members) {
+        if (knownGenes == null) {
+            return members;
+        }
+        List<String[]> known = new ArrayList<String[]>(members.size());
+        for (String[] member : members) {
+            if (knownGenes.isKnown(taxonId, member[0])) {
+                known.add(member);
+            }
+        }
+        return known;
+    }
+
+    private boolean isScore(String token) {
+        try {
+            Double.parseDouble(token);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Store a Homolog for every pair of genes, except genes paired with themselves.
+     */
+    private int registerPairs(FileTask task, Cluster cluster, String[] fields1,
+            String organism1, String[] fields2, String organism2, String relationship,
+            String type) {
         int registered = 0;
 
-        for( int i1=0; i1 < fields1.length; i1++) {
-          for( int i2=0; i2 < fields2.length; i2++ ) {
-            // register all pairs with genes1 and genes2
-            // everything should be an integer. Skip this record if not
-
-	      Item o = createItem("Homolog");
-	      o.setReference("organism1",organismMap.get(Integer.parseInt(p1)));
-	      o.setReference("organism2", organismMap.get(Integer.parseInt(p2)));
-	      String gene1 = fields1[i1];
-	      String gene2 = fields2[i2];
-
-	      if(gene1.equals(gene2)){
-		  continue;
-	      }else{
-		  o.setReference("gene1",getGene(gene1,p1));
-		  o.setReference("gene2",getGene(gene2,p2));
-		  o.setAttribute("groupName",groupName);
-		  o.setAttribute("relationship",relationship);
-		  o.setAttribute("bootscore",score);
-		  o.setAttribute("type",type);
-		  try {
-		      store(o);
-		  } catch (ObjectStoreException e) {
-		      throw new BuildException("There was a problem storing homolog: "+e.getMessage());
-		  }
-		  registered++;
-	      }	      
-          }
+        for (int i1 = 0; i1 < fields1.length; i1++) {
+            String gene1 = fields1[i1];
+            for (int i2 = 0; i2 < fields2.length; i2++) {
+                String gene2 = fields2[i2];
+                if (gene1.equals(gene2)) {
+                    continue;
+                }
+                Item o = task.createItem("Homolog");
+                o.setReference("organism1", organism1);
+                o.setReference("organism2", organism2);
+                o.setReference("gene1", gene1);
+                o.setReference("gene2", gene2);
+                o.setAttribute("groupName", cluster.groupName);
+                o.setAttribute("relationship", relationship);
+                o.setAttribute("bootscore", cluster.score);
+                o.setAttribute("type", type);
+                task.store(o);
+                registered++;
+            }
         }
         return registered;
     }
-      
-      private String getGene(String geneName, String taxonId) {
-        if (!geneMap.containsKey(geneName)) {
-          Item g = createItem("Gene");
-          g.setAttribute("primaryIdentifier",geneName);
-          g.setReference("organism", organismMap.get(Integer.parseInt(taxonId)));
-          try {
-            store(g);
-          } catch (ObjectStoreException e) {
-            throw new BuildException("There was a problem storing gene: "+e.getMessage());
-          }
-          geneMap.put(geneName,g.getIdentifier());
+
+    /**
+     * Store an item of a file, with its identifier and the refIds of its genes, the genes are
+     * stored the first time they are seen.  The items are stored by one thread in file order
+     * so are numbered the same whichever worker converts a file.
+     */
+    private void write(FileTask task, Item item) {
+        String className = item.getClassName();
+        item.setIdentifier(ids.nextIdentifier(className));
+        if ("HomologGroup".equals(className)) {
+            task.group = item.getIdentifier();
+        } else if ("HomologGroupMember".equals(className)) {
+            item.setReference("group", task.group);
+            setGene(item, "gene", "organism");
+        } else {
+            setGene(item, "gene1", "organism1");
+            setGene(item, "gene2", "organism2");
+        }
+        storeItem(item);
+    }
+
+    /**
+     * Replace the name of the gene an item was created with by the refId of the gene.
+     */
+    private void setGene(Item item, String gene, String organism) {
+        String geneName = item.getReference(gene).getRefId();
+        item.setReference(gene, getGene(geneName, item.getReference(organism).getRefId()));
+    }
+
+    /**
+     * @return the refId of a gene, stored the first time it is seen
+     */
+    private String getGene(String geneName, String organism) {
+        try {
+            String refId = geneMap.get(geneName);
+            if (refId == null) {
+                Item g = ids.createItem("Gene");
+                g.setAttribute("primaryIdentifier", geneName);
+                g.setReference("organism", organism);
+                storeItem(g);
+                refId = g.getIdentifier();
+                geneMap.put(geneName, refId);
+            }
+            return refId;
+        } catch (IOException e) {
+            throw new BuildException("failed to keep genes on disk", e);
+        }
+    }
+
+    private void storeItem(Item item) {
+        try {
+            store(item);
+        } catch (ObjectStoreException e) {
+            throw new BuildException("There was a problem storing "
+                    + item.getClassName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The genes of a line, and the relationship of each side.
+     */
+    private static class Cluster
+    {
+        private String groupName;
+        private String score;
+        private String class1;
+        private String class2;
+        // the tokens of the genes, storing pairs
+        private String[] genes1;
+        private String[] genes2;
+        // the genes and their scores, storing groups
+        private List<String[]> members1;
+        private List<String[]> members2;
+    }
+
+    /**
+     * The conversion of one file.  Items are created without identifiers and with the names
+     * of their genes, and stored as they are created, or when converting with workers
+     * collected into batches for the thread processing the files to store.
+     */
+    private class FileTask implements Runnable
+    {
+        private final File file;
+        private final String taxonId1;
+        private final String organism1;
+        private final String taxonId2;
+        private final String organism2;
+        private final boolean batched;
+        private final BlockingQueue<List<Item>> batches =
+            new ArrayBlockingQueue<List<Item>>(QUEUED_BATCHES);
+        private List<Item> batch = new ArrayList<Item>();
+        // the refId of the group last stored, for its members
+        private String group = null;
+        private Throwable error = null;
+        private int orthoRegistered = 0;
+        private int paraRegistered = 0;
+        private int groupsRegistered = 0;
+
+        FileTask(File file, String taxonId1, String organism1, String taxonId2,
+                String organism2, boolean batched) {
+            this.file = file;
+            this.taxonId1 = taxonId1;
+            this.organism1 = organism1;
+            this.taxonId2 = taxonId2;
+            this.organism2 = organism2;
+            this.batched = batched;
+        }
+
+        public void run() {
+            try {
+                Reader reader = new BufferedReader(new FileReader(file));
+                try {
+                    convert(this, reader);
+                } finally {
+                    reader.close();
+                }
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                try {
+                    batches.put(END);
+                } catch (InterruptedException e) {
+                    // close() failed and stopped the workers
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        Item createItem(String className) {
+            return itemFactory.makeItem(null, className, "");
+        }
+
+        void store(Item item) {
+            if (!batched) {
+                write(this, item);
+                return;
+            }
+            batch.add(item);
+            if (batch.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (batched && !batch.isEmpty()) {
+                try {
+                    // waits for the writer if it is behind
+                    batches.put(batch);
+                } catch (InterruptedException e) {
+                    throw new BuildException("Interrupted converting " + file, e);
+                }
+                batch = new ArrayList<Item>();
+            }
+        }
+
+        void log() {
+            if (groups) {
+                LOG.info(file.getName() + ": registered " + groupsRegistered
+                        + " homolog groups.");
+            } else {
+                LOG.info(file.getName() + ": registered " + orthoRegistered + " orthologs and "
+                        + paraRegistered + " paralogs.");
+            }
         }
-        return geneMap.get(geneName);
-      }
     }
+}
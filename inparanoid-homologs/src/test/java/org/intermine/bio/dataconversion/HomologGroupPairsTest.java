@@ -0,0 +1,65 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2011 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.intermine.model.bio.Gene;
+import org.intermine.model.bio.HomologGroup;
+import org.intermine.model.bio.HomologGroupMember;
+import org.intermine.model.bio.Organism;
+import org.intermine.util.DynamicUtil;
+
+public class HomologGroupPairsTest extends TestCase
+{
+    public HomologGroupPairsTest(String arg) {
+        super(arg);
+    }
+
+    public void testGetPairs() throws Exception {
+        // both sides are Arabidopsis, one gene is on both sides as a different object
+        Organism organism = DynamicUtil.createObject(Organism.class);
+        organism.setId(Integer.valueOf(1));
+        HomologGroup group = DynamicUtil.createObject(HomologGroup.class);
+        group.setRelationship("many-to-many");
+        addMember(group, organism, 1, "AT1G01010");
+        addMember(group, organism, 1, "AT1G01020");
+        addMember(group, organism, 2, "AT1G01010");
+        addMember(group, organism, 2, "AT2G01010");
+
+        Set<String> pairs = new HashSet<String>();
+        for (HomologGroupPairs.Pair pair : HomologGroupPairs.getPairs(group)) {
+            assertTrue(pairs.add(pair.getGene1().getPrimaryIdentifier() + " "
+                    + pair.getGene2().getPrimaryIdentifier() + " " + pair.getType() + " "
+                    + pair.getRelationship()));
+        }
+        Set<String> expected = new HashSet<String>();
+        expected.add("AT1G01010 AT2G01010 ortholog many-to-many");
+        expected.add("AT1G01020 AT1G01010 ortholog many-to-many");
+        expected.add("AT1G01020 AT2G01010 ortholog many-to-many");
+        expected.add("AT1G01010 AT1G01020 paralog many-to-many");
+        expected.add("AT1G01020 AT1G01010 paralog many-to-many");
+        assertEquals(expected, pairs);
+    }
+
+    private void addMember(HomologGroup group, Organism organism, int side, String identifier) {
+        Gene gene = DynamicUtil.createObject(Gene.class);
+        gene.setPrimaryIdentifier(identifier);
+        HomologGroupMember member = DynamicUtil.createObject(HomologGroupMember.class);
+        member.setGene(gene);
+        member.setOrganism(organism);
+        member.setSide(Integer.valueOf(side));
+        group.addMembers(member);
+    }
+}
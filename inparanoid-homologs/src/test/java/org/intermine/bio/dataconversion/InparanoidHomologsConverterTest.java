@@ -0,0 +1,252 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2011 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.intermine.dataconversion.ItemsTestCase;
+import org.intermine.dataconversion.MockItemWriter;
+import org.intermine.metadata.Model;
+import org.intermine.model.fulldata.Item;
+
+public class InparanoidHomologsConverterTest extends ItemsTestCase
+{
+    private static final int CLUSTERS = 5000;
+    private static final boolean BENCHMARK = Boolean.getBoolean("medicmine.benchmark");
+    private static final int BENCHMARK_CLUSTERS = 10000;
+    private static final int ROUNDS = 3;
+
+    Model model = Model.getInstanceByName("genomic");
+    InparanoidHomologsConverter converter;
+    MockItemWriter itemWriter;
+
+    public InparanoidHomologsConverterTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        itemWriter = new MockItemWriter(new HashMap<String, Item>());
+        converter = new InparanoidHomologsConverter(itemWriter, model);
+    }
+
+    public void testProcessLargeTable() throws Exception {
+        int expected = 0;
+        for (int c = 0; c < CLUSTERS; c++) {
+            int size1 = 1 + c % 4;
+            int size2 = 1 + c % 8;
+            // every gene and score token pairs up, except with itself for paralogs
+            expected += 2 * size1 * 2 * size2 + 2 * size1 * (2 * size1 - 1);
+        }
+        converter.setCurrentFile(new File("3880"));
+        converter.process(new StringReader(largeTable(CLUSTERS)));
+        converter.close();
+
+        int homologs = 0;
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("Homolog".equals(item.getClassName())) {
+                int c = Integer.parseInt(item.getAttribute("groupName").getValue());
+                String class1 = (c % 4 == 0) ? "one" : "many";
+                String class2 = (c % 8 == 0) ? "one" : "many";
+                String type = item.getAttribute("type").getValue();
+                assertEquals(class1 + "-to-" + ("ortholog".equals(type) ? class2 : class1),
+                        item.getAttribute("relationship").getValue());
+                assertEquals(String.valueOf(100 + c % 900),
+                        item.getAttribute("bootscore").getValue());
+                homologs++;
+            }
+        }
+        assertEquals(expected, homologs);
+    }
+
+    /**
+     * Times the conversion of a table of BENCHMARK_CLUSTERS clusters and prints the fastest of
+     * a few rounds, so the converter is timed after warming up.
+     */
+    public void testBenchmarkLargeTable() throws Exception {
+        if (!BENCHMARK) {
+            return;
+        }
+        String table = largeTable(BENCHMARK_CLUSTERS);
+        long fastest = Long.MAX_VALUE;
+        int items = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            setUp();
+            converter.setCurrentFile(new File("3880"));
+            long start = System.nanoTime();
+            converter.process(new StringReader(table));
+            converter.close();
+            fastest = Math.min(fastest, System.nanoTime() - start);
+            items = itemWriter.getItems().size();
+        }
+        System.out.println(String.format("InparanoidHomologsConverter %d clusters in %d ms, "
+                + "%.0f items/s", BENCHMARK_CLUSTERS, fastest / 1000000,
+                items / (fastest / 1e9)));
+    }
+
+    /**
+     * @return clusters of one to eight genes a side, each gene followed by its bootstrap score
+     */
+    private String largeTable(int clusters) {
+        StringBuffer table = new StringBuffer();
+        for (int c = 0; c < clusters; c++) {
+            table.append(c).append('\t').append(100 + c % 900).append('\t');
+            appendGenes(table, "AT" + c + "G", "0.5", 1 + c % 4);
+            table.append('\t');
+            appendGenes(table, "Medtr" + c + "g", "0.7", 1 + c % 8);
+            table.append('\n');
+        }
+        return table.toString();
+    }
+
+    public void testThreads() throws Exception {
+        File[] files = writeFiles();
+
+        Map<String, Integer> sequential = homologs(files);
+        Set<org.intermine.xml.full.Item> sequentialItems = itemWriter.getItems();
+        setUp();
+        converter.setInparanoidHomologsThreads("3");
+        Map<String, Integer> threaded = homologs(files);
+
+        assertEquals(sequential, threaded);
+        // and the same identifiers
+        assertEquals(sequentialItems, itemWriter.getItems());
+        deleteFiles(files);
+    }
+
+    public void testWorkerIdentifiers() throws Exception {
+        File[] files = writeFiles();
+
+        for (String groups : new String[] {"false", "true"}) {
+            Set<org.intermine.xml.full.Item> oneWorker = null;
+            for (String workers : new String[] {"1", "2", "3", "8"}) {
+                setUp();
+                converter.setInparanoidHomologsGroups(groups);
+                converter.setInparanoidHomologsThreads(workers);
+                homologs(files);
+                if (oneWorker == null) {
+                    oneWorker = itemWriter.getItems();
+                } else {
+                    // the files race, the items have the same identifiers and references
+                    assertEquals(workers + " workers", oneWorker, itemWriter.getItems());
+                }
+            }
+        }
+        deleteFiles(files);
+    }
+
+    /**
+     * @return species-pair files sharing the Arabidopsis genes
+     */
+    private File[] writeFiles() throws Exception {
+        File dir = File.createTempFile("inparanoid", "");
+        dir.delete();
+        dir.mkdir();
+        File[] files = new File[] {new File(dir, "3880"), new File(dir, "3847"),
+            new File(dir, "3694")};
+        for (int f = 0; f < files.length; f++) {
+            StringBuffer table = new StringBuffer();
+            for (int c = 0; c < 500; c++) {
+                table.append(c).append("\t100\t");
+                // the Arabidopsis genes are shared by the files
+                appendGenes(table, "AT" + c + "G", "0.5", 1 + c % 3);
+                table.append('\t');
+                appendGenes(table, files[f].getName() + "_" + c + "g", "0.7", 1 + (c + f) % 4);
+                table.append('\n');
+            }
+            FileWriter writer = new FileWriter(files[f]);
+            writer.write(table.toString());
+            writer.close();
+        }
+        return files;
+    }
+
+    private void deleteFiles(File[] files) {
+        for (File file : files) {
+            file.delete();
+        }
+        files[0].getParentFile().delete();
+    }
+
+    public void testKnownGenes() throws Exception {
+        File known = File.createTempFile("known", ".txt");
+        FileWriter writer = new FileWriter(known);
+        writer.write("Medtr1g\n");
+        writer.close();
+        converter.setInparanoidHomologsKnownGenes("3880:" + known.getPath());
+        converter.setCurrentFile(new File("3880"));
+        converter.process(new StringReader("1\t100\tAT1G 1.000 AT2G 0.500\t"
+                + "Medtr1g 1.000 Medtr2g 0.400\n"));
+        converter.close();
+        known.delete();
+
+        int homologs = 0;
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("Gene".equals(item.getClassName())) {
+                // the unknown gene is dropped with its score, the score of the known one kept
+                String gene = item.getAttribute("primaryIdentifier").getValue();
+                assertFalse(gene, "Medtr2g".equals(gene) || "0.400".equals(gene));
+            } else if ("Homolog".equals(item.getClassName())) {
+                // the relationship of the whole cluster
+                assertEquals("many-to-many", item.getAttribute("relationship").getValue());
+                homologs++;
+            }
+        }
+        // 4 x 2 orthologs and 4 x 3 paralogs, less the pairs of the score with itself
+        assertEquals(7 + 12, homologs);
+    }
+
+    /**
+     * @return the number of homologs stored by gene identifiers and type
+     */
+    private Map<String, Integer> homologs(File[] files) throws Exception {
+        for (File file : files) {
+            converter.setCurrentFile(file);
+            FileReader reader = new FileReader(file);
+            converter.process(reader);
+            reader.close();
+        }
+        converter.close();
+
+        Map<String, String> genes = new HashMap<String, String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("Gene".equals(item.getClassName())) {
+                genes.put(item.getIdentifier(), item.getAttribute("primaryIdentifier").getValue());
+            }
+        }
+        Map<String, Integer> homologs = new HashMap<String, Integer>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("Homolog".equals(item.getClassName())) {
+                String homolog = genes.get(item.getReference("gene1").getRefId()) + " "
+                    + genes.get(item.getReference("gene2").getRefId()) + " "
+                    + item.getAttribute("type").getValue();
+                Integer count = homologs.get(homolog);
+                homologs.put(homolog, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+            }
+        }
+        return homologs;
+    }
+
+    private void appendGenes(StringBuffer table, String prefix, String score, int size) {
+        for (int g = 0; g < size; g++) {
+            if (g > 0) {
+                table.append(' ');
+            }
+            table.append(prefix).append(g).append(' ').append(score).append(g);
+        }
+    }
+}
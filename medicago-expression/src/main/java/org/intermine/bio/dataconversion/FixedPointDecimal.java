@@ -0,0 +1,135 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2011 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.math.BigDecimal;
+
+/**
+ * Rounds decimal text to a fixed number of decimals, half-up, giving the same text as
+ * new BigDecimal(text).setScale(scale, BigDecimal.ROUND_HALF_UP).toString().  Plain decimals
+ * such as "0.130758" are read directly into a scaled long and formatted into a reused buffer,
+ * anything else (exponents, very long numbers, bad input) goes through BigDecimal.  Over 6
+ * decimals BigDecimal writes small values with an exponent, e.g. 1E-7, so those scales always
+ * go through BigDecimal.  Not thread-safe.
+ */
+public class FixedPointDecimal
+{
+    // digits that always fit in a long, with room for rounding up
+    private static final int MAX_DIGITS = 18;
+    // the most decimals BigDecimal.toString() writes without an exponent
+    private static final int MAX_PLAIN_SCALE = 6;
+
+    private final int scale;
+    private final char[] buffer = new char[MAX_DIGITS + 3];
+
+    /**
+     * @param scale the number of decimals to keep, at least 0, only up to 6 are rounded
+     * without BigDecimal
+     */
+    public FixedPointDecimal(int scale) {
+        if (scale < 0) {
+            throw new IllegalArgumentException("scale must be at least 0: " + scale);
+        }
+        this.scale = scale;
+    }
+
+    /**
+     * Round a decimal to the scale.
+     * @param text the decimal, e.g. 0.130758
+     * @return the rounded decimal, e.g. 0.13
+     * @throws NumberFormatException if text is not a valid BigDecimal
+     */
+    public String round(String text) {
+        if (scale > MAX_PLAIN_SCALE) {
+            return roundSlow(text);
+        }
+        int len = text.length();
+        int pos = 0;
+        boolean negative = false;
+        if (len > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            negative = text.charAt(0) == '-';
+            pos++;
+        }
+        long unscaled = 0;
+        // significant digits kept in unscaled
+        int digits = 0;
+        // decimals read so far, -1 before the point
+        int decimals = -1;
+        boolean anyDigit = false;
+        boolean roundUp = false;
+        for (; pos < len; pos++) {
+            char c = text.charAt(pos);
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (c >= '0' && c <= '9') {
+                anyDigit = true;
+                if (decimals < scale) {
+                    if (unscaled > 0 || c != '0') {
+                        digits++;
+                    }
+                    unscaled = unscaled * 10 + (c - '0');
+                    if (decimals >= 0) {
+                        decimals++;
+                    }
+                    if (digits > MAX_DIGITS) {
+                        return roundSlow(text);
+                    }
+                } else if (decimals == scale) {
+                    // first discarded digit decides, the rest can't change HALF_UP
+                    roundUp = c >= '5';
+                    decimals++;
+                }
+            } else {
+                // exponent or not a number
+                return roundSlow(text);
+            }
+        }
+        if (!anyDigit) {
+            // let BigDecimal throw the exception
+            return roundSlow(text);
+        }
+        int padding = scale - Math.max(0, Math.min(decimals, scale));
+        if (unscaled > 0 && digits + padding > MAX_DIGITS) {
+            return roundSlow(text);
+        }
+        for (int i = 0; i < padding; i++) {
+            unscaled *= 10;
+        }
+        if (roundUp) {
+            unscaled++;
+        }
+        return format(negative && unscaled != 0, unscaled);
+    }
+
+    private String format(boolean negative, long unscaled) {
+        int end = buffer.length;
+        int pos = end;
+        for (int i = 0; i < scale; i++) {
+            buffer[--pos] = (char) ('0' + unscaled % 10);
+            unscaled /= 10;
+        }
+        if (scale > 0) {
+            buffer[--pos] = '.';
+        }
+        do {
+            buffer[--pos] = (char) ('0' + unscaled % 10);
+            unscaled /= 10;
+        } while (unscaled > 0);
+        if (negative) {
+            buffer[--pos] = '-';
+        }
+        return new String(buffer, pos, end - pos);
+    }
+
+    private String roundSlow(String text) {
+        return new BigDecimal(text).setScale(scale, BigDecimal.ROUND_HALF_UP).toString();
+    }
+}
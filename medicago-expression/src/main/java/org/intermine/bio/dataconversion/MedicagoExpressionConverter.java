@@ -11,18 +11,17 @@ package org.intermine.bio.dataconversion;
  */
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 
 import java.io.Reader;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.math.BigDecimal;
 
 import org.intermine.dataconversion.ItemWriter;
 import org.intermine.metadata.Model;
 import org.intermine.xml.full.Item;
 import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.util.FormattedTextParser;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.tools.ant.BuildException;
@@ -32,7 +31,7 @@ import org.apache.tools.ant.BuildException;
  *
  * @author
  */
-public class MedicagoExpressionConverter extends BioFileConverter
+public class MedicagoExpressionConverter extends AsyncBioFileConverter
 {
     //
     private static final String DATASET_TITLE = "RNA-seq expression";
@@ -42,6 +41,9 @@ public class MedicagoExpressionConverter extends BioFileConverter
     private static final String TAXON_ID = "3880";
     private Map<String, String> mrnas = new HashMap<String, String>();
     private Map<String, String> terms = new HashMap<String, String>();
+    private Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+    // FPKM rounded to 2 decimals, half-up
+    private FixedPointDecimal fpkm = new FixedPointDecimal(2);
 
 
     /**
@@ -60,23 +62,16 @@ public class MedicagoExpressionConverter extends BioFileConverter
         }
     }
     public void process (Reader reader)  throws ObjectStoreException {
-        Iterator<?> tsvIter;
-        try {
-            tsvIter = FormattedTextParser.parseTabDelimitedReader(reader);
-        } catch (Exception e) {
-            throw new BuildException("cannot parse file: " + getCurrentFile(), e);
-        }
-        while (tsvIter.hasNext()) {
-            String[] line = (String[]) tsvIter.next();
-            if(line.length < 3){
+        // mRNA, FPKM and stage
+        TsvReader tsv = new TsvReader(reader, 0, 1, 2);
+        while (next(tsv)) {
+            if(tsv.getColumnCount() < 3){
                 continue;
             }
-            String id = line[0];	// Medtr1g005000
+            String id = tsv.get(0);	// Medtr1g005000
             Item result = createItem("RNASeqResult");
-	    BigDecimal bd = new BigDecimal(line[1]); 	// 0.130758
-	    bd = bd.setScale(2,BigDecimal.ROUND_HALF_UP);
-            String score = bd.toString() ;
-            String stage = line[2];
+            String score = fpkm.round(tsv.get(1));	// 0.130758 -> 0.13
+            Stage stage = getStage(tsv.get(2));
             if (StringUtils.isNotEmpty(score)) {
 		 try {
 		     //    Float score = Float.valueOf(fpkm).floatValue();
@@ -86,21 +81,60 @@ public class MedicagoExpressionConverter extends BioFileConverter
 
 		     }
             }
-             if (StringUtils.isNotEmpty(stage)) {
-                try {
-                    result.setAttribute("stage", stage);
-                } catch (NumberFormatException e) {
-                    LOG.warn("bad stage: " + stage, e);
-                }
+            if (stage != null) {
+                result.setReference("stage", stage.refId);
             }
             String mrna = getMRNA(id);
             if (StringUtils.isNotEmpty(mrna)) {
                 //result.setReference("transcript", mrna);
 		result.setReference("mrna", mrna);
                 store(result);
+                if (stage != null) {
+                    stage.resultStored();
+                }
             }
         }
     }
+
+    /**
+     * Report the number of results loaded for each stage, stages without results aren't
+     * stored.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws Exception {
+        for (Stage stage : stages.values()) {
+            LOG.info("Stage " + stage.name + ": " + stage.count + " results");
+        }
+        super.close();
+    }
+
+    private boolean next(TsvReader tsv) {
+        try {
+            return tsv.next();
+        } catch (IOException e) {
+            throw new BuildException("cannot parse file: " + getCurrentFile(), e);
+        }
+    }
+
+    /**
+     * @return the stage, stored when its first result is
+     */
+    private Stage getStage(String name) {
+        if (StringUtils.isEmpty(name)) {
+            return null;
+        }
+        Stage stage = stages.get(name);
+        if (stage == null) {
+            Item item = createItem("RNASeqStage");
+            item.setAttribute("name", name);
+            stage = new Stage(name, item);
+            stages.put(name, stage);
+        }
+        return stage;
+    }
+
     private String getMRNA(String fbgn) throws ObjectStoreException {
         if (StringUtils.isEmpty(fbgn)) {
             return null;
@@ -122,11 +156,23 @@ public class MedicagoExpressionConverter extends BioFileConverter
 
     class Stage {
         protected String name;
-        protected String category;
+        protected String refId;
+        protected int count = 0;
+        // until the first result is stored
+        private Item item;
 
-        public Stage(String name, String category) {
+        public Stage(String name, Item item) {
             this.name = name;
-            this.category = category;
+            this.refId = item.getIdentifier();
+            this.item = item;
+        }
+
+        void resultStored() throws ObjectStoreException {
+            if (item != null) {
+                store(item);
+                item = null;
+            }
+            count++;
         }
     }
 }
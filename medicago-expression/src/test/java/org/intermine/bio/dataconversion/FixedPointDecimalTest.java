@@ -0,0 +1,110 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2011 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks FixedPointDecimal against the BigDecimal rounding it replaces, on generated input.
+ */
+public class FixedPointDecimalTest extends TestCase
+{
+    private static final String CHARS = "0123456789012345678901234567890123456789.-+eE x";
+
+    public FixedPointDecimalTest(String arg) {
+        super(arg);
+    }
+
+    public void testExamples() {
+        FixedPointDecimal decimal = new FixedPointDecimal(2);
+        assertEquals("0.13", decimal.round("0.130758"));
+        assertEquals("0.14", decimal.round("0.135"));
+        assertEquals("100.00", decimal.round("99.995"));
+        assertEquals("-0.01", decimal.round("-0.005"));
+        assertEquals("0.00", decimal.round("-0.004"));
+        assertEquals("12.00", decimal.round("12"));
+        assertEquals("0.50", decimal.round(".5"));
+        assertEquals("1.00", decimal.round("1."));
+        assertEquals("1230.00", decimal.round("1.23e3"));
+    }
+
+    public void testScale() {
+        // BigDecimal writes an exponent over 6 decimals
+        FixedPointDecimal decimal = new FixedPointDecimal(7);
+        assertEquals("1E-7", decimal.round("0.00000005"));
+        assertEquals("0E-7", decimal.round("0"));
+        assertEquals("1.2345679", decimal.round("1.23456789"));
+        for (String text : new String[] {"0.00000005", "0", "0.0000001", "-0.00000049", "1.5"}) {
+            assertSameAsBigDecimal(6, text);
+            assertSameAsBigDecimal(7, text);
+            assertSameAsBigDecimal(12, text);
+        }
+    }
+
+    public void testPlainDecimals() {
+        Random random = new Random(3880);
+        for (int i = 0; i < 200000; i++) {
+            StringBuffer text = new StringBuffer();
+            if (random.nextInt(4) == 0) {
+                text.append(random.nextBoolean() ? '-' : '+');
+            }
+            appendDigits(random, text, random.nextInt(22));
+            if (random.nextInt(5) > 0) {
+                text.append('.');
+                appendDigits(random, text, random.nextInt(12));
+            }
+            assertSameAsBigDecimal(random.nextInt(5), text.toString());
+        }
+    }
+
+    public void testArbitraryText() {
+        Random random = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            StringBuffer text = new StringBuffer();
+            // short enough to keep exponents, and BigDecimal, small
+            int len = random.nextInt(7);
+            for (int j = 0; j < len; j++) {
+                text.append(CHARS.charAt(random.nextInt(CHARS.length())));
+            }
+            assertSameAsBigDecimal(2, text.toString());
+        }
+    }
+
+    private void appendDigits(Random random, StringBuffer text, int count) {
+        for (int i = 0; i < count; i++) {
+            // favour the digits around the rounding boundary
+            text.append(random.nextInt(3) == 0 ? '9' : (char) ('0' + random.nextInt(10)));
+        }
+    }
+
+    private void assertSameAsBigDecimal(int scale, String text) {
+        String expected;
+        try {
+            expected = new BigDecimal(text).setScale(scale, BigDecimal.ROUND_HALF_UP).toString();
+        } catch (NumberFormatException e) {
+            expected = "NumberFormatException";
+        } catch (ArithmeticException e) {
+            expected = "ArithmeticException";
+        }
+        String actual;
+        try {
+            actual = new FixedPointDecimal(scale).round(text);
+        } catch (NumberFormatException e) {
+            actual = "NumberFormatException";
+        } catch (ArithmeticException e) {
+            actual = "ArithmeticException";
+        }
+        assertEquals("scale " + scale + ": \"" + text + "\"", expected, actual);
+    }
+}
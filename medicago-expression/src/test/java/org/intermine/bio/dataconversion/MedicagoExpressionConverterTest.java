@@ -0,0 +1,63 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2011 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.intermine.dataconversion.ItemsTestCase;
+import org.intermine.dataconversion.MockItemWriter;
+import org.intermine.metadata.Model;
+import org.intermine.model.fulldata.Item;
+
+public class MedicagoExpressionConverterTest extends ItemsTestCase
+{
+    Model model = Model.getInstanceByName("genomic");
+    MedicagoExpressionConverter converter;
+    MockItemWriter itemWriter;
+
+    public MedicagoExpressionConverterTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        itemWriter = new MockItemWriter(new HashMap<String, Item>());
+        converter = new MedicagoExpressionConverter(itemWriter, model);
+    }
+
+    public void testStages() throws Exception {
+        // the results of the root stage have no mRNA, so aren't stored
+        converter.setCurrentFile(new File("expression.txt"));
+        converter.process(new StringReader("Medtr1g005000\t0.130758\tleaf\n"
+                + "\t1.5\troot\n"
+                + "Medtr1g005010\t2\tleaf\n"));
+        converter.close();
+
+        Map<String, String> stages = new HashMap<String, String>();
+        int results = 0;
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("RNASeqStage".equals(item.getClassName())) {
+                stages.put(item.getIdentifier(), item.getAttribute("name").getValue());
+            }
+        }
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("RNASeqResult".equals(item.getClassName())) {
+                assertEquals("leaf", stages.get(item.getReference("stage").getRefId()));
+                results++;
+            }
+        }
+        assertEquals(1, stages.size());
+        assertEquals(2, results);
+    }
+}
@@ -10,13 +10,13 @@ package org.intermine.bio.dataconversion;
  *
  */
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -31,14 +31,13 @@ import org.intermine.bio.util.OrganismRepository;
 import org.intermine.dataconversion.ItemWriter;
 import org.intermine.metadata.Model;
 import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.util.FormattedTextParser;
 import org.intermine.metadata.StringUtil;
 import org.intermine.xml.full.Item;
 
 /**
  * @author Julie Sullivan
  */
-public class MedicagoOrthoConverter extends BioFileConverter
+public class MedicagoOrthoConverter extends AsyncBioFileConverter
 {
     private Properties props = new Properties();
     private static final String PROP_FILE = "medicago-ortho_config.properties";
@@ -47,31 +46,52 @@ public class MedicagoOrthoConverter extends BioFileConverter
     private static final Logger LOG = Logger.getLogger(MedicagoOrthoConverter.class);
     private Set<String> taxonIds = new HashSet<String>();
     private Set<String> homologues = new HashSet<String>();
-    private Map<MultiKey, String> identifiersToGenes = new HashMap<MultiKey, String>();
+    // taxonId:identifier to refId, within the heap budget
+    private SpillingMap identifiersToGenes = new SpillingMap("panther-genes", Long.MAX_VALUE, null);
+    // PANTHER family id to refId
+    private Map<String, String> families = new HashMap<String, String>();
     private Map<String, String> config = new HashMap<String, String>();
-    private static String evidenceRefId = null;
+    // created once per converter, so the evidence is stored by each writer that uses it
+    private String evidenceRefId = null;
     private static final Map<String, String> TYPES = new HashMap<String, String>();
     private static final String DEFAULT_IDENTIFIER_TYPE = "primaryIdentifier";
+    // genes, type and PANTHER family
+    private static final int[] COLUMNS = new int[] {0, 1, 2, 4};
     private OrganismRepository or;
-    private Set<String> databasesNamesToPrepend = new HashSet<String>();
-    private Map<String, Map<String, String>> geneIdPolymorphism =
-            new HashMap<String, Map<String, String>>();
+    // rules from the config, compiled into tries so each identifier is matched in one pass
+    private PrefixTrie<Boolean> databasesNamesToPrepend = new PrefixTrie<Boolean>();
+    private Map<String, PrefixTrie<String>> geneIdPolymorphism =
+            new HashMap<String, PrefixTrie<String>>();
 
     private static final String EVIDENCE_CODE_ABBR = "AA";
     private static final String EVIDENCE_CODE_NAME = "Amino acid sequence comparison";
     // PANTHER publication pubmed ids, refer to http://www.pantherdb.org/publications.jsp
-    private static ArrayList<String> PUBLICATIONS = new ArrayList<String>() {
-        private static final long serialVersionUID = 1L;
-    {
-        add("12520017");
-        add("20015972");
-        add("16912992");
-        add("19597783");
-        add("20534164");
-        add("15492219");
-    }};
+    private static final List<String> PUBLICATIONS = Arrays.asList("12520017", "20015972",
+            "16912992", "19597783", "20534164", "15492219");
 
     private IdResolver rslv;
+    // UniProt mnemonics of the organisms loaded, followed by the | that ends them, and their
+    // taxonIds, null to load all organisms
+    private String[] filterMnemonics = null;
+    private String[] filterTaxonIds = null;
+    // mnemonics, with their |, of the organisms skipped by the filter that are in the
+    // repository, so each is looked up once, copied on write as the threads parsing lines
+    // read it
+    private volatile String[] checkedMnemonics = new String[0];
+    // store one Homologue per pair of genes rather than one in each direction
+    private boolean canonical = false;
+    // pairs of genes already stored in canonical mode
+    private Set<MultiKey> homologuePairs = new HashSet<MultiKey>();
+    // lines are parsed and resolved by this many threads, partitioned by pair of genes
+    private int threads = 1;
+    private HomologueLines lines = null;
+    // Homologues are numbered by the line they are read from, so any number of threads
+    // gives the same identifiers
+    private final ItemIdAllocator ids;
+    // the genes loaded by the GFF source, genes not in it are dropped, null to keep all genes
+    private String knownGenesFiles = null;
+    private double knownGenesFalsePositives = 0;
+    private KnownGenes knownGenes = null;
 
     /**
      * Constructor
@@ -84,6 +104,9 @@ public class MedicagoOrthoConverter extends BioFileConverter
         super(writer, model, DATA_SOURCE_NAME, DATASET_TITLE);
         readConfig();
         or = OrganismRepository.getOrganismRepository();
+        // one in each direction
+        ids = new ItemIdAllocator(model, 2);
+        ids.addClass("Homologue", alias("Homologue"));
     }
 
     static {
@@ -115,21 +138,89 @@ public class MedicagoOrthoConverter extends BioFileConverter
         LOG.info("Setting list of homologues to " + homologues);
     }
 
+    /**
+     * If true, store a single Homologue for each pair of genes instead of one in each
+     * direction.  The Homologue of a gene is then in either Gene.homologues or
+     * Gene.reverseHomologues.  The gene of a Homologue is the first of the pair by taxonId
+     * then identifier, as in the Phytozome source.
+     *
+     * @param canonical true to store one Homologue per pair
+     */
+    public void setPantherCanonical(String canonical) {
+        this.canonical = Boolean.parseBoolean(canonical);
+        LOG.info("Setting canonical homologues to " + this.canonical);
+    }
+
+    /**
+     * Parse the lines and resolve the genes with several threads.  The homologues are still
+     * stored by one thread in the order of the lines, so the items are the same as with one
+     * thread.
+     *
+     * @param threads the number of threads
+     */
+    public void setPantherThreads(String threads) {
+        this.threads = Integer.parseInt(threads);
+        LOG.info("Setting threads to " + this.threads);
+    }
+
+    /**
+     * Only load genes that are also loaded by the GFF source, identifiers of other genes are
+     * dropped and counted rather than stored as Genes nothing else refers to.  Organisms
+     * without a file are not filtered.
+     *
+     * @param files space separated taxonId:path, the path a GFF3 file, a file listing one
+     * identifier a line or a directory of them
+     */
+    public void setPantherKnownGenes(String files) {
+        this.knownGenesFiles = files;
+        LOG.info("Setting known genes to " + files);
+    }
+
+    /**
+     * Hold the known genes in a Bloom filter with this false positive rate rather than
+     * exactly, a few unknown genes are then kept.
+     *
+     * @param rate the false positive rate, e.g. 0.01, or 0 to hold the genes exactly
+     */
+    public void setPantherKnownGenesFalsePositives(String rate) {
+        this.knownGenesFalsePositives = Double.parseDouble(rate);
+        LOG.info("Setting known genes false positive rate to " + rate);
+    }
+
+    /**
+     * Keep the genes seen within a heap budget, the genes used least recently are moved to
+     * disk.  Unlimited if not set.
+     *
+     * @param heapBudget bytes, or with k, m or g, e.g. 512m
+     * @throws IOException if genes over the budget can't be moved to disk
+     */
+    public void setPantherHeapBudget(String heapBudget) throws IOException {
+        identifiersToGenes.setHeapBudget(SpillingMap.parseSize(heapBudget));
+        LOG.info("Setting heap budget to " + heapBudget);
+    }
+
     private void readConfig() {
         try {
             props.load(getClass().getClassLoader().getResourceAsStream(PROP_FILE));
         } catch (IOException e) {
             throw new RuntimeException("Problem loading properties '" + PROP_FILE + "'", e);
         }
+        readConfig(props);
+    }
 
-        for (Map.Entry<Object, Object> entry: props.entrySet()) {
+    /**
+     * Compile the rules of a config, added to the rules already read.
+     * @param rules the config, in the format of medicago-ortho_config.properties
+     */
+    void readConfig(Properties rules) {
+        for (Map.Entry<Object, Object> entry: rules.entrySet()) {
             String key = (String) entry.getKey();
             String value = ((String) entry.getValue()).trim();
 
             if ("prependDBName".equals(key)) {
                 String[] dbnames = value.split(",");
                 for (String name : dbnames) {
-                    databasesNamesToPrepend.add(name);
+                    databasesNamesToPrepend.put(name.trim(), Boolean.TRUE);
                 }
                 continue;
             }
@@ -138,13 +229,12 @@ public class MedicagoOrthoConverter extends BioFileConverter
                 String[] attributes = key.split("\\.");
                 if (attributes.length == 4) {
                     String taxonId = attributes[0];
-                    if (geneIdPolymorphism.isEmpty() || geneIdPolymorphism.get(taxonId).isEmpty()) {
-                        Map<String, String> patternMap = new HashMap<String, String>();
-                        patternMap.put(attributes[3].trim(), value);
-                        geneIdPolymorphism.put(taxonId, patternMap);
-                    } else {
-                        geneIdPolymorphism.get(taxonId).put(attributes[3].trim(), value);
+                    PrefixTrie<String> patterns = geneIdPolymorphism.get(taxonId);
+                    if (patterns == null) {
+                        patterns = new PrefixTrie<String>();
+                        geneIdPolymorphism.put(taxonId, patterns);
                     }
+                    patterns.put(attributes[3].trim(), value);
                 }
                 continue;
             }
@@ -159,37 +249,45 @@ public class MedicagoOrthoConverter extends BioFileConverter
         }
     }
 
-    private String getGene(String geneId, String taxonId)
+    /**
+     * @param geneId the identifier from the file
+     * @param resolvedGenePid the resolved identifier, null if it could not be resolved
+     * @param taxonId the organism
+     * @return the refId of the gene, null if it could not be resolved
+     */
+    private String getGene(String geneId, String resolvedGenePid, String taxonId)
         throws ObjectStoreException {
         String identifierType = config.get(taxonId);
         if (StringUtils.isEmpty(identifierType)) {
             identifierType = DEFAULT_IDENTIFIER_TYPE;
         }
 
-        geneId = parseIdentifier(geneId);
-        String resolvedGenePid = resolveGene(taxonId, geneId);
         if (resolvedGenePid == null) {
             return null;
         }
 
-        String refId = identifiersToGenes.get(new MultiKey(taxonId, resolvedGenePid));
+        String key = taxonId + ":" + resolvedGenePid;
+        String refId;
+        try {
+            refId = identifiersToGenes.get(key);
+        } catch (IOException e) {
+            throw new ObjectStoreException("failed to read genes from disk", e);
+        }
         if (refId == null) {
             Item gene = createItem("Gene");
             gene.setAttribute(DEFAULT_IDENTIFIER_TYPE, resolvedGenePid);
 
-            if (geneIdPolymorphism.containsKey(taxonId)) {
-                Map<String, String> patternMap = geneIdPolymorphism.get(taxonId);
-                for (String key : patternMap.keySet()) {
-                    if (geneId.startsWith(key)) {
-                        identifierType = patternMap.get(key);
-                        if (!identifierType.equals(DEFAULT_IDENTIFIER_TYPE)) {
-                            if ("crossReferences".equals(identifierType)) {
-                                gene.addToCollection(identifierType,
-                                        createCrossReference(gene.getIdentifier(), geneId,
-                                                DATA_SOURCE_NAME, true));
-                            } else {
-                                gene.setAttribute(identifierType, geneId);
-                            }
+            PrefixTrie<String> patterns = geneIdPolymorphism.get(taxonId);
+            if (patterns != null) {
+                // every prefix the identifier starts with sets its field
+                for (String patternType : patterns.getPrefixValues(geneId)) {
+                    if (!patternType.equals(DEFAULT_IDENTIFIER_TYPE)) {
+                        if ("crossReferences".equals(patternType)) {
+                            gene.addToCollection(patternType,
+                                    createCrossReference(gene.getIdentifier(), geneId,
+                                            DATA_SOURCE_NAME, true));
+                        } else {
+                            gene.setAttribute(patternType, geneId);
                         }
                     }
                 }
@@ -207,18 +305,30 @@ public class MedicagoOrthoConverter extends BioFileConverter
 
             gene.setReference("organism", getOrganism(taxonId));
             refId = gene.getIdentifier();
-            identifiersToGenes.put(new MultiKey(taxonId, resolvedGenePid), refId);
+            try {
+                identifiersToGenes.put(key, refId);
+            } catch (IOException e) {
+                throw new ObjectStoreException("failed to move genes to disk", e);
+            }
             store(gene);
         }
         return refId;
     }
 
+    /**
+     * @param ident e.g. MGI=MGI=1333783
+     * @return the identifier after the last '=', with the database name if it is to be kept,
+     * e.g. MGI:1333783
+     */
     private String parseIdentifier(String ident) {
-        String[] identifierString = ident.split("=");
-        String dbName = identifierString[0];
-        String identifier = identifierString[identifierString.length-1];
-        if (databasesNamesToPrepend.contains(dbName)) {
-            identifier = dbName + ":" + identifier;
+        int first = ident.indexOf('=');
+        int last = ident.lastIndexOf('=');
+        if (first < 0) {
+            return ident;
+        }
+        String identifier = ident.substring(last + 1);
+        if (databasesNamesToPrepend.get(ident, 0, first) != null) {
+            identifier = ident.substring(0, first) + ":" + identifier;
         }
         return identifier;
     }
@@ -249,56 +359,194 @@ public class MedicagoOrthoConverter extends BioFileConverter
             rslv = IdResolverService.getIdResolverByOrganism(allTaxonIds);
         }
 
-        Iterator<String[]> lineIter = FormattedTextParser.parseTabDelimitedReader(reader);
-        while (lineIter.hasNext()) {
-            String[] bits = lineIter.next();
-            if (bits.length < 5) {
-                continue;
+        if (filterMnemonics == null && !taxonIds.isEmpty()) {
+            buildOrganismFilter(allTaxonIds);
+        }
+        if (knownGenesFiles != null && knownGenes == null) {
+            knownGenes = new KnownGenes(knownGenesFiles, knownGenesFalsePositives);
+        }
+
+        if (threads > 1) {
+            if (lines == null) {
+                lines = new HomologueLines(threads);
+            }
+            lines.process(new BufferedReader(reader));
+            return;
+        }
+        TsvReader tsv = new TsvReader(reader, COLUMNS);
+        while (tsv.next()) {
+            String[] pair = parseLine(tsv);
+            if (pair != null) {
+                resolvePair(pair);
+                Item[] pairHomologues;
+                ids.startLine(tsv.getLinesRead());
+                try {
+                    pairHomologues = createHomologues(pair);
+                } finally {
+                    ids.endLine();
+                }
+                storePair(pair, pairHomologues);
             }
+        }
+        ids.endFile(tsv.getLinesRead());
+    }
 
-            String[] gene1IdentifierString = bits[0].split("\\|");
-            String[] gene2IdentifierString = bits[1].split("\\|");
+    /**
+     * @return the taxonId, gene, resolved gene (unset) of each side of the pair, the type and
+     * the PANTHER id, or null if the line isn't for organisms of interest
+     */
+    private String[] parseLine(TsvReader tsv) {
+        if (tsv.getColumnCount() < 5) {
+            return null;
+        }
+        String taxonId1 = null;
+        String taxonId2 = null;
+        if (filterMnemonics != null) {
+            // check the organisms, e.g. MOUSE|MGI=..., without making Strings
+            taxonId1 = filterOrganism(tsv, 0);
+            taxonId2 = filterOrganism(tsv, 1);
+            if (taxonId1 == null || taxonId2 == null) {
+                // not an organism of interest, skip, but not organisms getTaxon() would fail on
+                checkOrganism(tsv, 0);
+                checkOrganism(tsv, 1);
+                return null;
+            }
+        }
 
-            if (StringUtils.isEmpty(gene1IdentifierString[0])
-                    || StringUtils.isEmpty(gene2IdentifierString[0])) {
-                // blank line
+        String[] gene1IdentifierString = tsv.get(0).split("\\|");
+        String[] gene2IdentifierString = tsv.get(1).split("\\|");
 
-                continue;
-            }
+        if (StringUtils.isEmpty(gene1IdentifierString[0])
+                || StringUtils.isEmpty(gene2IdentifierString[0])) {
+            // blank line
 
-            String taxonId1 = getTaxon(gene1IdentifierString[0]);
-            String taxonId2 = getTaxon(gene2IdentifierString[0]);
-            if (!isValid(taxonId1, taxonId2)) {
-                // not an organism of interest, skip
-                continue;
-            }
-            String type = bits[2];
-            String pantherId = bits[4];
+            return null;
+        }
 
-            String gene1 = getGene(gene1IdentifierString[1], taxonId1);
-            String gene2 = getGene(gene2IdentifierString[1], taxonId2);
+        if (filterMnemonics == null) {
+            taxonId1 = getTaxon(gene1IdentifierString[0]);
+            taxonId2 = getTaxon(gene2IdentifierString[0]);
+        }
+        if (!isValid(taxonId1, taxonId2)) {
+            // not an organism of interest, skip
+            return null;
+        }
+        String type = tsv.get(2);
+        String pantherId = tsv.get(4);
+        return new String[] {taxonId1, gene1IdentifierString[1], null,
+            taxonId2, gene2IdentifierString[1], null, type, pantherId};
+    }
 
-            processHomologues(gene1, gene2, type, pantherId);
-            processHomologues(gene2, gene1, type, pantherId);
+    /**
+     * Parse the genes of a pair and resolve them, the resolved gene is null if not resolved.
+     */
+    private void resolvePair(String[] pair) {
+        for (int i = 0; i < 6; i += 3) {
+            pair[i + 1] = parseIdentifier(pair[i + 1]);
+            pair[i + 2] = filterKnown(pair[i], resolveGene(pair[i], pair[i + 1]));
         }
     }
 
-    private void processHomologues(String gene1, String gene2, String type, String pantherId)
-            throws ObjectStoreException {
-            if (gene1 == null || gene2 == null) {
-                return;
+    /**
+     * @return the identifier, or null if it isn't a known gene
+     */
+    private String filterKnown(String taxonId, String identifier) {
+        if (identifier == null || knownGenes == null || knownGenes.isKnown(taxonId, identifier)) {
+            return identifier;
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws Exception {
+        if (knownGenes != null) {
+            knownGenes.logDropped(LOG);
+        }
+        identifiersToGenes.close();
+        super.close();
+    }
+
+    /**
+     * Create the Homologues a pair may need, before the genes are known.  Called by the thread
+     * parsing the line.
+     * @return a Homologue for each direction, or null if a gene isn't resolved
+     */
+    private Item[] createHomologues(String[] pair) {
+        if (pair[2] == null || pair[5] == null) {
+            return null;
+        }
+        return new Item[] {createHomologue(pair[6]), createHomologue(pair[6])};
+    }
+
+    private Item createHomologue(String type) {
+        Item homologue = ids.createItem("Homologue");
+        homologue.setAttribute("type", TYPES.get(type));
+        return homologue;
+    }
+
+    private void storePair(String[] pair, Item[] pairHomologues) throws ObjectStoreException {
+        String gene1 = getGene(pair[1], pair[2], pair[0]);
+        String gene2 = getGene(pair[4], pair[5], pair[3]);
+        String pantherId = pair[7];
+
+        // a gene isn't resolved
+        if (pairHomologues == null) {
+            return;
+        }
+        if (canonical) {
+            // the same gene of the pair is the gene of the Homologue whichever order it is
+            // read in, as in PhytozomeHomologsConverter
+            if (compareGenes(pair) > 0) {
+                String swap = gene1;
+                gene1 = gene2;
+                gene2 = swap;
             }
-            Item homologue = createItem("Homologue");
+            if (homologuePairs.add(new MultiKey(gene1, gene2))) {
+                processHomologues(pairHomologues[0], gene1, gene2, pantherId);
+            }
+            return;
+        }
+        processHomologues(pairHomologues[0], gene1, gene2, pantherId);
+        processHomologues(pairHomologues[1], gene2, gene1, pantherId);
+    }
+
+    /**
+     * Order the genes of a resolved pair by taxonId then identifier.  In canonical mode the
+     * first gene is the gene of the Homologue.
+     * @return less than 0 if the first gene of the pair comes first, 0 if they are the same
+     */
+    private static int compareGenes(String[] pair) {
+        int order = pair[0].compareTo(pair[3]);
+        return (order != 0) ? order : pair[2].compareTo(pair[5]);
+    }
+
+    private void processHomologues(Item homologue, String gene1, String gene2, String pantherId)
+            throws ObjectStoreException {
             homologue.setReference("gene", gene1);
             homologue.setReference("homologue", gene2);
             homologue.addToCollection("evidence", getEvidence());
-            homologue.setAttribute("type", TYPES.get(type));
-            homologue.addToCollection("crossReferences",
-                createCrossReference(homologue.getIdentifier(), pantherId,
-                        DATA_SOURCE_NAME, true));
+            homologue.setReference("pantherFamily", getFamily(pantherId));
             store(homologue);
         }
 
+    /**
+     * @return the refId of the family, shared by all the homologues in it
+     */
+    private String getFamily(String pantherId) throws ObjectStoreException {
+        String refId = families.get(pantherId);
+        if (refId == null) {
+            Item family = createItem("PantherFamily");
+            family.setAttribute("primaryIdentifier", pantherId);
+            store(family);
+            refId = family.getIdentifier();
+            families.put(pantherId, refId);
+        }
+        return refId;
+    }
+
     // genes (in taxonIDs) are always processed
     // homologues are only processed if they are of an organism of interest
     private boolean isValid(String organism1, String organism2) {
@@ -325,6 +573,71 @@ public class MedicagoOrthoConverter extends BioFileConverter
         return false;
     }
 
+    /**
+     * Look up the UniProt mnemonics of the organisms we load once, so lines of other
+     * organisms can be skipped before they are split.
+     */
+    private void buildOrganismFilter(Set<String> allTaxonIds) {
+        List<String> mnemonics = new ArrayList<String>();
+        List<String> filteredTaxonIds = new ArrayList<String>();
+        for (String taxonId : allTaxonIds) {
+            OrganismData od = or.getOrganismDataByTaxon(taxonId);
+            if (od == null || od.getUniprot() == null) {
+                throw new BuildException("No data for `" + taxonId
+                        + "`.  Please add to repository.");
+            }
+            mnemonics.add(od.getUniprot() + "|");
+            filteredTaxonIds.add(taxonId);
+        }
+        filterMnemonics = mnemonics.toArray(new String[mnemonics.size()]);
+        filterTaxonIds = filteredTaxonIds.toArray(new String[filteredTaxonIds.size()]);
+    }
+
+    /**
+     * @param tsv the line
+     * @param column the gene column, starting with the organism
+     * @return the taxonId of the organism, null if it is not one we load
+     */
+    private String filterOrganism(TsvReader tsv, int column) {
+        for (int i = 0; i < filterMnemonics.length; i++) {
+            if (tsv.startsWith(column, filterMnemonics[i])) {
+                return filterTaxonIds[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fail on an organism that isn't in the repository, as getTaxon() does, so a misconfigured
+     * run doesn't load part of the data.  The column is only made a String the first time
+     * its organism is seen.
+     * @param tsv the line
+     * @param column the gene column, starting with the organism
+     */
+    private void checkOrganism(TsvReader tsv, int column) {
+        for (String mnemonic : checkedMnemonics) {
+            if (tsv.startsWith(column, mnemonic)) {
+                return;
+            }
+        }
+        String gene = tsv.get(column);
+        int end = gene.indexOf('|');
+        String name = (end < 0) ? gene : gene.substring(0, end);
+        if (name.isEmpty()) {
+            // blank line
+            return;
+        }
+        getTaxon(name);
+        String mnemonic = name + "|";
+        synchronized (this) {
+            if (!Arrays.asList(checkedMnemonics).contains(mnemonic)) {
+                String[] checked = Arrays.copyOf(checkedMnemonics, checkedMnemonics.length + 1);
+                checked[checked.length - 1] = mnemonic;
+                checkedMnemonics = checked;
+            }
+        }
+    }
+
     private String getTaxon(String name) {
         OrganismData od = or.getOrganismDataByUniprot(name);
         if (od == null) {
@@ -354,13 +667,8 @@ public class MedicagoOrthoConverter extends BioFileConverter
             for (String pubmed : PUBLICATIONS) {
                 Item pub = createItem("Publication");
                 pub.setAttribute("pubMedId", pubmed);
-                String pubRefId = pub.getIdentifier();
-                pubRefIds.add(pubRefId);
-                try {
-                    store(pub);
-                } catch (ObjectStoreException e) {
-                    throw new ObjectStoreException(e);
-                }
+                pubRefIds.add(pub.getIdentifier());
+                store(pub);
             }
 
             Item evidence = createItem("OrthologueEvidence");
@@ -402,4 +710,75 @@ public class MedicagoOrthoConverter extends BioFileConverter
         }
         return rslv.resolveId(taxonId, identifier).iterator().next();
     }
+
+    /**
+     * A resolved pair and the Homologues created for it.
+     */
+    private static class ResolvedPair
+    {
+        private final String[] pair;
+        private final Item[] homologues;
+
+        ResolvedPair(String[] pair, Item[] homologues) {
+            this.pair = pair;
+            this.homologues = homologues;
+        }
+    }
+
+    /**
+     * Parses and resolves lines in partitions by the pair of genes.  In canonical mode each
+     * partition skips the pairs it has seen before, without locking.  The Homologues are
+     * created by the partitions too.
+     */
+    private class HomologueLines extends PartitionedLineProcessor<ResolvedPair>
+    {
+        // the pairs seen by each partition, both directions of a pair are in one partition
+        private final List<GenePairSet> seenPairs = new ArrayList<GenePairSet>();
+        // the columns of the line each partition is parsing
+        private final List<TsvReader> rows = new ArrayList<TsvReader>();
+
+        HomologueLines(int partitions) {
+            super(partitions, ids);
+            for (int i = 0; i < partitions; i++) {
+                seenPairs.add(new GenePairSet());
+                rows.add(new TsvReader(COLUMNS));
+            }
+        }
+
+        @Override
+        protected int hash(String line) {
+            int tab1 = line.indexOf('\t');
+            int tab2 = tab1 < 0 ? -1 : line.indexOf('\t', tab1 + 1);
+            if (tab2 < 0) {
+                return 0;
+            }
+            // the same either way round
+            return hash(line, 0, tab1) + hash(line, tab1 + 1, tab2);
+        }
+
+        @Override
+        protected ResolvedPair map(int partition, String line) {
+            TsvReader row = rows.get(partition);
+            if (!row.set(line)) {
+                return null;
+            }
+            String[] pair = parseLine(row);
+            if (pair == null) {
+                return null;
+            }
+            if (canonical) {
+                if (!seenPairs.get(partition).add(pair[0], pair[1], pair[3], pair[4])) {
+                    // already stored, or not resolved, the first time
+                    return null;
+                }
+            }
+            resolvePair(pair);
+            return new ResolvedPair(pair, createHomologues(pair));
+        }
+
+        @Override
+        protected void write(ResolvedPair resolved) throws ObjectStoreException {
+            storePair(resolved.pair, resolved.homologues);
+        }
+    }
 }
@@ -0,0 +1,114 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2013 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A trie of string keys, built once from the configuration and then looked up for every
+ * identifier.  Lookups walk the characters of a region of the identifier without allocating.
+ *
+ * @param <V> the type of the values
+ */
+public class PrefixTrie<V>
+{
+    private final Node<V> root = new Node<V>();
+
+    /**
+     * Add a key.
+     * @param key the key
+     * @param value the value, replaces the value of an existing key
+     */
+    public void put(String key, V value) {
+        Node<V> node = root;
+        for (int i = 0; i < key.length(); i++) {
+            node = node.addChild(key.charAt(i));
+        }
+        node.value = value;
+    }
+
+    /**
+     * @param s the string
+     * @param start the start of the region to match
+     * @param end the end of the region to match
+     * @return the value of the key equal to the region, or null
+     */
+    public V get(String s, int start, int end) {
+        Node<V> node = root;
+        for (int i = start; i < end && node != null; i++) {
+            node = node.getChild(s.charAt(i));
+        }
+        return (node == null) ? null : node.value;
+    }
+
+    /**
+     * @param s the string
+     * @return the values of all the keys that s starts with, shortest key first, an empty
+     * list that isn't allocated if there are none
+     */
+    public List<V> getPrefixValues(String s) {
+        List<V> values = null;
+        Node<V> node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.value != null) {
+                if (values == null) {
+                    values = new ArrayList<V>();
+                }
+                values.add(node.value);
+            }
+            node = (i < s.length()) ? node.getChild(s.charAt(i)) : null;
+        }
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        return values;
+    }
+
+    private static class Node<V>
+    {
+        // sorted, children[i] follows chars[i]
+        private char[] chars = new char[0];
+        private Node<V>[] children = newArray(0);
+        private V value = null;
+
+        Node<V> getChild(char c) {
+            int i = Arrays.binarySearch(chars, c);
+            return (i < 0) ? null : children[i];
+        }
+
+        Node<V> addChild(char c) {
+            int i = Arrays.binarySearch(chars, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            i = -i - 1;
+            char[] newChars = new char[chars.length + 1];
+            Node<V>[] newChildren = newArray(chars.length + 1);
+            System.arraycopy(chars, 0, newChars, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            System.arraycopy(chars, i, newChars, i + 1, chars.length - i);
+            System.arraycopy(children, i, newChildren, i + 1, chars.length - i);
+            newChars[i] = c;
+            newChildren[i] = new Node<V>();
+            chars = newChars;
+            children = newChildren;
+            return newChildren[i];
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> Node<V>[] newArray(int length) {
+            return new Node[length];
+        }
+    }
+}
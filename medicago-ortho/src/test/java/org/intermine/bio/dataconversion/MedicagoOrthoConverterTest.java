@@ -0,0 +1,302 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2013 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.intermine.dataconversion.ItemsTestCase;
+import org.intermine.dataconversion.MockItemWriter;
+import org.intermine.metadata.Model;
+import org.intermine.model.fulldata.Item;
+
+public class MedicagoOrthoConverterTest extends ItemsTestCase
+{
+    private static final String ORTHOLOGS =
+        "HUMAN|ENSEMBL=ENSG01|UniProtKB=P1\tARATH|TAIR=AT1G01010|UniProtKB=Q1\tLDO\tEukaryota\tPTHR1\n"
+        + "ARATH|TAIR=AT1G01010|UniProtKB=Q1\tHUMAN|ENSEMBL=ENSG01|UniProtKB=P1\tLDO\tEukaryota\tPTHR1\n"
+        + "HUMAN|ENSEMBL=ENSG01|UniProtKB=P1\tARATH|TAIR=AT1G01020|UniProtKB=Q2\tO\tEukaryota\tPTHR1\n"
+        + "ARATH|TAIR=AT1G01010|UniProtKB=Q1\tARATH|TAIR=AT1G01020|UniProtKB=Q2\tP\tEukaryota\tPTHR1\n";
+
+    Model model = Model.getInstanceByName("genomic");
+    MedicagoOrthoConverter converter;
+    MockItemWriter itemWriter;
+
+    public MedicagoOrthoConverterTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        itemWriter = new MockItemWriter(new HashMap<String, Item>());
+        converter = new MedicagoOrthoConverter(itemWriter, model);
+        converter.setPantherOrganisms("9606 3702");
+    }
+
+    public void testCanonical() throws Exception {
+        Map<String, Set<String>> directed = homologues();
+
+        setUp();
+        converter.setPantherCanonical("true");
+        Map<String, Set<String>> canonical = homologues();
+
+        // each gene answers for the pairs it was stored on either side of
+        assertEquals(directed, canonical);
+        assertEquals(2, canonical.get("ENSG01").size());
+        assertEquals(2, canonical.get("AT1G01010").size());
+        assertEquals(2, canonical.get("AT1G01020").size());
+        assertEquals(3, countItems("Homologue"));
+        // the homologues share their family
+        assertEquals(1, countItems("PantherFamily"));
+
+        // the gene of each Homologue is the first by taxonId then identifier, as in the
+        // Phytozome source, whichever way round the line has the pair
+        Map<String, String> genes = new HashMap<String, String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("Gene".equals(item.getClassName())) {
+                genes.put(item.getIdentifier(), item.getAttribute("primaryIdentifier").getValue());
+            }
+        }
+        Set<String> pairs = new HashSet<String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("Homologue".equals(item.getClassName())) {
+                pairs.add(genes.get(item.getReference("gene").getRefId()) + " "
+                        + genes.get(item.getReference("homologue").getRefId()));
+            }
+        }
+        Set<String> expected = new HashSet<String>();
+        expected.add("AT1G01010 ENSG01");
+        expected.add("AT1G01020 ENSG01");
+        expected.add("AT1G01010 AT1G01020");
+        assertEquals(expected, pairs);
+    }
+
+    public void testIdentifierRules() throws Exception {
+        // overlapping rules for human, and rules for a second taxon
+        Properties rules = new Properties();
+        rules.setProperty("9606.geneid.polymorphism.ENS", "crossReferences");
+        rules.setProperty("9606.geneid.polymorphism.ENSG", "symbol");
+        rules.setProperty("10090.geneid.polymorphism.MGI", "secondaryIdentifier");
+        converter.readConfig(rules);
+        converter.setPantherOrganisms("9606 10090");
+        converter.setCurrentFile(new File("RefGenomeOrthologs.txt"));
+        converter.process(new StringReader(
+                "HUMAN|ENSEMBL=ENSG01|UniProtKB=P1\tMOUSE|MGI=MGI=1333783|UniProtKB=Q1"
+                + "\tLDO\tEukaryota\tPTHR1\n"
+                + "HUMAN|HGNC=HGNC=5|UniProtKB=P2\tMOUSE|MGI=MGI=1333784|UniProtKB=Q2"
+                + "\tLDO\tEukaryota\tPTHR1\n"));
+        converter.close();
+
+        Map<String, String> crossReferences = new HashMap<String, String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("CrossReference".equals(item.getClassName())) {
+                crossReferences.put(item.getIdentifier(),
+                        item.getAttribute("identifier").getValue());
+            }
+        }
+        // every rule an identifier matches sets its field, as before the rules were a trie
+        Set<String> genes = new HashSet<String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("Gene".equals(item.getClassName())) {
+                StringBuffer gene = new StringBuffer(
+                        item.getAttribute("primaryIdentifier").getValue());
+                for (String field : new String[] {"symbol", "secondaryIdentifier"}) {
+                    if (item.hasAttribute(field)) {
+                        gene.append(" " + field + "=" + item.getAttribute(field).getValue());
+                    }
+                }
+                if (item.hasCollection("crossReferences")) {
+                    for (String refId : item.getCollection("crossReferences").getRefIds()) {
+                        gene.append(" crossReference=" + crossReferences.get(refId));
+                    }
+                }
+                genes.add(gene.toString());
+            }
+        }
+        Set<String> expected = new HashSet<String>();
+        expected.add("ENSG01 symbol=ENSG01 crossReference=ENSG01");
+        expected.add("5");
+        // MGI is kept with the identifier, so the mouse rule matches it
+        expected.add("MGI:1333783 secondaryIdentifier=MGI:1333783");
+        expected.add("MGI:1333784 secondaryIdentifier=MGI:1333784");
+        assertEquals(expected, genes);
+    }
+
+    public void testUnknownOrganism() throws Exception {
+        // mouse is in the repository but not loaded, so its lines are skipped
+        String orthologs = ORTHOLOGS
+            + "MOUSE|MGI=MGI=1|UniProtKB=Q3\tARATH|TAIR=AT1G01010|UniProtKB=Q1\tLDO\tEukaryota"
+            + "\tPTHR1\n";
+        for (String threads : new String[] {"1", "4"}) {
+            setUp();
+            converter.setPantherThreads(threads);
+            assertEquals(3, homologues(orthologs).size());
+
+            // an organism missing from the repository fails the run, as it did before lines
+            // were filtered on their organisms
+            setUp();
+            converter.setPantherThreads(threads);
+            try {
+                homologues(orthologs + "XENLA|Xenbase=X1|UniProtKB=Q4"
+                        + "\tARATH|TAIR=AT1G01010|UniProtKB=Q1\tLDO\tEukaryota\tPTHR1\n");
+                fail("expected a BuildException with " + threads + " threads");
+            } catch (BuildException e) {
+                assertTrue(e.getMessage().contains("XENLA"));
+            }
+        }
+    }
+
+    public void testConcurrentConverters() throws Exception {
+        final int instances = 4;
+        final MockItemWriter[] writers = new MockItemWriter[instances];
+        final Throwable[] errors = new Throwable[instances];
+        Thread[] threads = new Thread[instances];
+        for (int i = 0; i < instances; i++) {
+            final int instance = i;
+            writers[i] = new MockItemWriter(new HashMap<String, Item>());
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        MedicagoOrthoConverter instanceConverter =
+                            new MedicagoOrthoConverter(writers[instance], model);
+                        instanceConverter.setPantherOrganisms("9606 3702");
+                        instanceConverter.setCurrentFile(new File("RefGenomeOrthologs.txt"));
+                        // each instance gets its own genes
+                        instanceConverter.process(new StringReader(
+                                ORTHOLOGS.replace("ENSG01", "ENSG0" + instance)));
+                        instanceConverter.close();
+                    } catch (Throwable t) {
+                        errors[instance] = t;
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < instances; i++) {
+            assertNull(errors[i]);
+            // every writer has the evidence its homologues refer to
+            Set<String> evidence = new HashSet<String>();
+            Set<String> genes = new HashSet<String>();
+            for (org.intermine.xml.full.Item item : writers[i].getItems()) {
+                if ("OrthologueEvidence".equals(item.getClassName())) {
+                    evidence.add(item.getIdentifier());
+                } else if ("Gene".equals(item.getClassName())) {
+                    genes.add(item.getAttribute("primaryIdentifier").getValue());
+                }
+            }
+            assertEquals(1, evidence.size());
+            assertTrue(genes.contains("ENSG0" + i));
+            for (org.intermine.xml.full.Item item : writers[i].getItems()) {
+                if ("Homologue".equals(item.getClassName())) {
+                    assertTrue(evidence.containsAll(
+                            item.getCollection("evidence").getRefIds()));
+                }
+            }
+        }
+    }
+
+    public void testThreads() throws Exception {
+        StringBuffer lines = new StringBuffer();
+        for (int i = 0; i < 20000; i++) {
+            // both directions of each pair, and some pairs again
+            int pair = i % 7000;
+            String human = "HUMAN|ENSEMBL=ENSG" + (pair % 3000) + "|UniProtKB=P" + pair;
+            String arath = "ARATH|TAIR=AT" + (pair % 2000) + "G|UniProtKB=Q" + pair;
+            if (i % 2 == 0) {
+                lines.append(human).append('\t').append(arath);
+            } else {
+                lines.append(arath).append('\t').append(human);
+            }
+            lines.append("\tLDO\tEukaryota\tPTHR").append(pair % 50).append('\n');
+        }
+        for (String canonical : new String[] {"false", "true"}) {
+            setUp();
+            converter.setPantherCanonical(canonical);
+            converter.setCurrentFile(new File("RefGenomeOrthologs.txt"));
+            converter.process(new StringReader(lines.toString()));
+            converter.close();
+            Set<org.intermine.xml.full.Item> sequential = itemWriter.getItems();
+
+            setUp();
+            converter.setPantherCanonical(canonical);
+            converter.setPantherThreads("4");
+            converter.setCurrentFile(new File("RefGenomeOrthologs.txt"));
+            converter.process(new StringReader(lines.toString()));
+            converter.close();
+
+            // the same items, with the same identifiers
+            assertEquals(sequential, itemWriter.getItems());
+        }
+    }
+
+    /**
+     * @return the homologues of each gene, found from Homologue.gene and Homologue.homologue
+     */
+    private Map<String, Set<String>> homologues() throws Exception {
+        return homologues(ORTHOLOGS);
+    }
+
+    /**
+     * @return the homologues of each gene of the orthologs, found from Homologue.gene and
+     * Homologue.homologue
+     */
+    private Map<String, Set<String>> homologues(String orthologs) throws Exception {
+        converter.setCurrentFile(new File("RefGenomeOrthologs.txt"));
+        converter.process(new StringReader(orthologs));
+        converter.close();
+
+        Map<String, String> genes = new HashMap<String, String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("Gene".equals(item.getClassName())) {
+                genes.put(item.getIdentifier(), item.getAttribute("primaryIdentifier").getValue());
+            }
+        }
+        Map<String, Set<String>> homologues = new HashMap<String, Set<String>>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("Homologue".equals(item.getClassName())) {
+                String gene = genes.get(item.getReference("gene").getRefId());
+                String homologue = genes.get(item.getReference("homologue").getRefId());
+                addHomologue(homologues, gene, homologue);
+                addHomologue(homologues, homologue, gene);
+            }
+        }
+        return homologues;
+    }
+
+    private void addHomologue(Map<String, Set<String>> homologues, String gene, String homologue) {
+        if (!homologues.containsKey(gene)) {
+            homologues.put(gene, new HashSet<String>());
+        }
+        homologues.get(gene).add(homologue);
+    }
+
+    private int countItems(String className) {
+        int count = 0;
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if (className.equals(item.getClassName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,71 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2013 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+public class PrefixTrieTest extends TestCase
+{
+    private PrefixTrie<String> trie;
+
+    public PrefixTrieTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        trie = new PrefixTrie<String>();
+        // the zebrafish rules, with one nested in another
+        trie.put("ENSDARG", "crossReferences");
+        trie.put("ZDB", "symbol");
+        trie.put("ZDB-GENE", "primaryIdentifier");
+    }
+
+    public void testNoMatch() throws Exception {
+        assertEquals(Collections.emptyList(), trie.getPrefixValues("WBGene00000001"));
+        assertEquals(Collections.emptyList(), trie.getPrefixValues("ENSDAR"));
+        assertEquals(Collections.emptyList(), trie.getPrefixValues(""));
+        assertNull(trie.get("ZD", 0, 2));
+        assertNull(trie.get("ZDB-GENE-1", 0, 10));
+    }
+
+    public void testExactMatch() throws Exception {
+        assertEquals(Arrays.asList("crossReferences"), trie.getPrefixValues("ENSDARG"));
+        assertEquals("crossReferences", trie.get("ENSDARG", 0, 7));
+        // a region of a longer string, as parseIdentifier looks up the database name
+        assertEquals("symbol", trie.get("ZDB=ZDB-GENE-1", 0, 3));
+    }
+
+    public void testNestedPrefixes() throws Exception {
+        // every key the identifier starts with, shortest first
+        assertEquals(Arrays.asList("symbol", "primaryIdentifier"),
+                trie.getPrefixValues("ZDB-GENE-980526-166"));
+        assertEquals(Arrays.asList("symbol"), trie.getPrefixValues("ZDB-EST-1"));
+        assertEquals(Arrays.asList("crossReferences"),
+                trie.getPrefixValues("ENSDARG00000012345"));
+
+        // a replaced value
+        trie.put("ZDB", "secondaryIdentifier");
+        assertEquals(Arrays.asList("secondaryIdentifier", "primaryIdentifier"),
+                trie.getPrefixValues("ZDB-GENE-980526-166"));
+    }
+
+    public void testSecondTaxon() throws Exception {
+        // each taxon has its own trie, the rules of one don't match identifiers of another
+        PrefixTrie<String> mouse = new PrefixTrie<String>();
+        mouse.put("MGI:", "secondaryIdentifier");
+        assertEquals(Arrays.asList("secondaryIdentifier"), mouse.getPrefixValues("MGI:1333783"));
+        assertEquals(Collections.emptyList(), mouse.getPrefixValues("ZDB-GENE-980526-166"));
+        assertEquals(Collections.emptyList(), trie.getPrefixValues("MGI:1333783"));
+    }
+}
@@ -0,0 +1,82 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import org.intermine.dataconversion.ItemWriter;
+import org.intermine.metadata.Model;
+
+/**
+ * A BioFileConverter whose items can be stored by a writer thread, so that parsing and
+ * writing to the items database overlap.  Set the asyncWriter property of the source to true
+ * to turn it on, see AsyncItemWriter.  The queued items are stored by close(), which throws
+ * any error storing them.
+ */
+public abstract class AsyncBioFileConverter extends BioFileConverter
+{
+    private final AsyncItemWriter asyncWriter;
+
+    /**
+     * @param writer the ItemWriter used to handle the resultant items
+     * @param model the Model
+     * @param dataSourceName the DataSource name
+     * @param dataSetTitle the DataSet title
+     */
+    public AsyncBioFileConverter(ItemWriter writer, Model model, String dataSourceName,
+            String dataSetTitle) {
+        this(new AsyncItemWriter(writer), model, dataSourceName, dataSetTitle);
+    }
+
+    private AsyncBioFileConverter(AsyncItemWriter writer, Model model, String dataSourceName,
+            String dataSetTitle) {
+        super(writer, model, dataSourceName, dataSetTitle);
+        this.asyncWriter = writer;
+    }
+
+    /**
+     * @param async true to store the items with a writer thread
+     */
+    public void setAsyncWriter(String async) {
+        asyncWriter.setAsync(Boolean.parseBoolean(async));
+    }
+
+    /**
+     * @param batchSize the number of items passed to the writer thread at a time
+     */
+    public void setAsyncWriterBatchSize(String batchSize) {
+        asyncWriter.setBatchSize(Integer.parseInt(batchSize));
+    }
+
+    /**
+     * @param queueSize the number of batches waiting to be stored before parsing waits
+     */
+    public void setAsyncWriterQueueSize(String queueSize) {
+        asyncWriter.setQueueSize(Integer.parseInt(queueSize));
+    }
+
+    /**
+     * @param memoryWatermark the fraction of the heap that, once used, makes parsing wait
+     * for the queued items to be stored, e.g. 0.8
+     */
+    public void setAsyncWriterMemoryWatermark(String memoryWatermark) {
+        asyncWriter.setMemoryWatermark(Double.parseDouble(memoryWatermark));
+    }
+
+    /**
+     * Store the queued items, after the items stored by closing the converter.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws Exception {
+        super.close();
+        asyncWriter.drain();
+    }
+}
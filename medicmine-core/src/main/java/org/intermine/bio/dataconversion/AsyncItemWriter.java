@@ -0,0 +1,354 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.intermine.dataconversion.ItemWriter;
+import org.intermine.model.fulldata.Item;
+import org.intermine.model.fulldata.ReferenceList;
+import org.intermine.objectstore.ObjectStoreException;
+
+/**
+ * An ItemWriter that stores items with its own thread, so a converter can carry on parsing
+ * while the items database is written to.  Items are collected into batches, a batch is
+ * passed to the writer thread when it is full or has been waiting for the flush interval,
+ * and at most a fixed number of batches are queued.  When the heap is fuller than the memory
+ * watermark the converter waits for the queue to empty, so queued items can't use up the
+ * heap.
+ *
+ * Until setAsync(true) is called items are stored as they are passed in.  Items are stored by
+ * the delegate in the order they were passed in.  An error storing items is thrown by the
+ * next call, and by drain() and close(), which wait for the queued items to be stored.
+ */
+public class AsyncItemWriter implements ItemWriter
+{
+    private static final Logger LOG = Logger.getLogger(AsyncItemWriter.class);
+    private static final List<Item> END = new ArrayList<Item>(0);
+
+    private final ItemWriter delegate;
+    private boolean async = false;
+    private int batchSize = 1000;
+    private int queueSize = 16;
+    private long flushInterval = 1000;
+    private double memoryWatermark = 0.8;
+
+    // guards the batch being filled, the writer thread only tries it so it never waits for
+    // a converter blocked on a full queue
+    private final ReentrantLock lock = new ReentrantLock();
+    private BlockingQueue<List<Item>> queue = null;
+    private Thread thread = null;
+    private List<Item> batch = null;
+    private long batchStarted = 0;
+    // batches passed to the writer thread and stored by it, to wait for it to catch up
+    private long handedOff = 0;
+    private final Object progress = new Object();
+    private volatile long written = 0;
+    private long memoryWaits = 0;
+    private volatile Throwable error = null;
+
+    /**
+     * @param delegate the writer that stores the items
+     */
+    public AsyncItemWriter(ItemWriter delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param async true to store items with a writer thread
+     */
+    public void setAsync(boolean async) {
+        checkNotStarted();
+        this.async = async;
+    }
+
+    /**
+     * @param batchSize the number of items passed to the writer thread at a time
+     */
+    public void setBatchSize(int batchSize) {
+        checkNotStarted();
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param queueSize the number of batches waiting for the writer thread before the
+     * converter waits
+     */
+    public void setQueueSize(int queueSize) {
+        checkNotStarted();
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @param flushInterval the longest time in milliseconds a batch waits before it is stored
+     */
+    public void setFlushInterval(long flushInterval) {
+        checkNotStarted();
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * @param memoryWatermark the fraction of the maximum heap that, once used, makes the
+     * converter wait for the queued items to be stored
+     */
+    public void setMemoryWatermark(double memoryWatermark) {
+        checkNotStarted();
+        this.memoryWatermark = memoryWatermark;
+    }
+
+    /**
+     * Queue an item to be stored.
+     *
+     * {@inheritDoc}
+     * @return null when storing with the writer thread, the id isn't known until later
+     */
+    public Integer store(Item item) throws ObjectStoreException {
+        lock.lock();
+        try {
+            if (!async) {
+                return delegate.store(item);
+            }
+            add(item);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void storeAll(Collection<Item> items) throws ObjectStoreException {
+        lock.lock();
+        try {
+            if (!async) {
+                delegate.storeAll(items);
+                return;
+            }
+            for (Item item : items) {
+                add(item);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * References refer to stored items, so the queued items are stored first.
+     *
+     * {@inheritDoc}
+     */
+    public void store(ReferenceList refList, Integer itemId) throws ObjectStoreException {
+        lock.lock();
+        try {
+            if (thread != null) {
+                handOff();
+                awaitWritten();
+            }
+            delegate.store(refList, itemId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Store the queued items and stop the writer thread.  The delegate is left open for its
+     * owner to close.  Items stored later are stored as they are passed in.
+     *
+     * @throws ObjectStoreException if the items couldn't be stored
+     */
+    public void drain() throws ObjectStoreException {
+        Thread writerThread;
+        lock.lock();
+        try {
+            writerThread = thread;
+            if (writerThread != null) {
+                handOff();
+                put(END);
+                thread = null;
+            }
+            async = false;
+        } finally {
+            lock.unlock();
+        }
+        if (writerThread != null) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ObjectStoreException("interrupted waiting for the writer thread", e);
+            }
+            LOG.info("Stored " + written + " batches with the writer thread, waited for it "
+                    + memoryWaits + " times with the heap over the watermark");
+        }
+        checkError();
+    }
+
+    /**
+     * Store the queued items and close the delegate.
+     *
+     * {@inheritDoc}
+     */
+    public void close() throws ObjectStoreException {
+        drain();
+        delegate.close();
+    }
+
+    private void add(Item item) throws ObjectStoreException {
+        checkError();
+        if (thread == null) {
+            start();
+        }
+        if (batch.isEmpty()) {
+            batchStarted = System.currentTimeMillis();
+        }
+        batch.add(item);
+        if (batch.size() >= batchSize
+                || System.currentTimeMillis() - batchStarted >= flushInterval) {
+            handOff();
+        }
+    }
+
+    private void handOff() throws ObjectStoreException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        if (runtime.totalMemory() - runtime.freeMemory()
+                > memoryWatermark * runtime.maxMemory()) {
+            // let the writer thread catch up, so the queued items can be collected
+            memoryWaits++;
+            awaitWritten();
+        }
+        put(batch);
+        batch = new ArrayList<Item>(batchSize);
+    }
+
+    private void put(List<Item> items) throws ObjectStoreException {
+        try {
+            queue.put(items);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ObjectStoreException("interrupted queueing items", e);
+        }
+        if (items != END) {
+            handedOff++;
+        }
+    }
+
+    private void awaitWritten() throws ObjectStoreException {
+        synchronized (progress) {
+            try {
+                while (written < handedOff && error == null) {
+                    progress.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ObjectStoreException("interrupted waiting for the writer thread", e);
+            }
+        }
+        checkError();
+    }
+
+    private void start() {
+        queue = new ArrayBlockingQueue<List<Item>>(queueSize);
+        batch = new ArrayList<Item>(batchSize);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "item-writer");
+        // don't keep the build running if the converter fails without draining
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The writer thread, stores the batches until the end.  After an error the batches are
+     * taken but not stored, so the converter doesn't wait on a full queue.
+     */
+    private void write() {
+        while (true) {
+            List<Item> items;
+            try {
+                items = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                error = e;
+                synchronized (progress) {
+                    progress.notifyAll();
+                }
+                return;
+            }
+            if (items == END) {
+                return;
+            }
+            if (items == null) {
+                items = takeWaitingBatch();
+                if (items == null) {
+                    continue;
+                }
+            }
+            if (error == null) {
+                try {
+                    delegate.storeAll(items);
+                } catch (Throwable t) {
+                    error = t;
+                }
+            }
+            synchronized (progress) {
+                written++;
+                progress.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the batch the converter has been filling for longer than the flush interval,
+     * or null, also while the converter is using the batch
+     */
+    private List<Item> takeWaitingBatch() {
+        if (!lock.tryLock()) {
+            return null;
+        }
+        try {
+            // only once the queue is empty, so the batches are stored in order
+            if (batch == null || batch.isEmpty() || !queue.isEmpty()
+                    || System.currentTimeMillis() - batchStarted < flushInterval) {
+                return null;
+            }
+            List<Item> waiting = batch;
+            batch = new ArrayList<Item>(batchSize);
+            handedOff++;
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkError() throws ObjectStoreException {
+        if (error != null) {
+            throw new ObjectStoreException("failed to store items", error);
+        }
+    }
+
+    private void checkNotStarted() {
+        if (thread != null) {
+            throw new IllegalStateException("the writer thread has already started");
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+/**
+ * A Bloom filter of strings.  Strings that were added are always found, strings that weren't
+ * are found with about the false positive rate it was made for.  Takes about 10 bits a string
+ * for a 1% false positive rate, however long the strings are.
+ */
+public class BloomFilter
+{
+    private final long[] bits;
+    private final long size;
+    private final int hashes;
+
+    /**
+     * @param expected the number of strings that will be added
+     * @param falsePositiveRate the chance of finding a string that wasn't added, e.g. 0.01
+     */
+    public BloomFilter(long expected, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("false positive rate must be between 0 and 1: "
+                    + falsePositiveRate);
+        }
+        expected = Math.max(1, expected);
+        double ln2 = Math.log(2);
+        long wanted = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (ln2 * ln2));
+        bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (Math.max(64, wanted) + 63) / 64)];
+        size = bits.length * 64L;
+        hashes = Math.max(1, (int) Math.round((double) size / expected * ln2));
+    }
+
+    /**
+     * @param s the string to add
+     */
+    public void add(String s) {
+        long hash = hash(s);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(hash1 + i * hash2);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @param s the string
+     * @return false if the string was not added, true if it probably was
+     */
+    public boolean mightContain(String s) {
+        long hash = hash(s);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(hash1 + i * hash2);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the size of the filter in bits
+     */
+    public long getSize() {
+        return size;
+    }
+
+    private long index(int combined) {
+        return (combined & 0xffffffffL) % size;
+    }
+
+    // 64 bit FNV-1a of the characters, the two halves are used as two independent hashes
+    private static long hash(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        // spread the last characters over the high bits too
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
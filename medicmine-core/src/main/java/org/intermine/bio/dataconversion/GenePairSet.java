@@ -0,0 +1,63 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The pairs of genes seen, either way round.  Each gene is numbered the first time it is seen
+ * and a pair is held as its two numbers packed into a long, so a line only makes a String of
+ * a gene the set hasn't seen before.  Not thread-safe, a partition of lines keeps its own.
+ */
+public class GenePairSet
+{
+    // taxonId to gene identifier to number
+    private final Map<String, Map<String, Integer>> genes =
+        new HashMap<String, Map<String, Integer>>();
+    private int geneCount = 0;
+    private final LongOpenHashSet pairs = new LongOpenHashSet();
+
+    /**
+     * @param taxonId1 the organism of the first gene
+     * @param gene1 the identifier of the first gene
+     * @param taxonId2 the organism of the second gene
+     * @param gene2 the identifier of the second gene
+     * @return true if the pair, either way round, wasn't already in the set
+     */
+    public boolean add(String taxonId1, String gene1, String taxonId2, String gene2) {
+        int number1 = getNumber(taxonId1, gene1);
+        int number2 = getNumber(taxonId2, gene2);
+        return pairs.add(LongOpenHashSet.pair(Math.min(number1, number2),
+                Math.max(number1, number2)));
+    }
+
+    /**
+     * @return the number of pairs in the set
+     */
+    public int size() {
+        return pairs.size();
+    }
+
+    private int getNumber(String taxonId, String gene) {
+        Map<String, Integer> taxonGenes = genes.get(taxonId);
+        if (taxonGenes == null) {
+            taxonGenes = new HashMap<String, Integer>();
+            genes.put(taxonId, taxonGenes);
+        }
+        Integer number = taxonGenes.get(gene);
+        if (number == null) {
+            number = Integer.valueOf(geneCount++);
+            taxonGenes.put(gene, number);
+        }
+        return number.intValue();
+    }
+}
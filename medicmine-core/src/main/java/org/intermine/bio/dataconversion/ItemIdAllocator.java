@@ -0,0 +1,169 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.intermine.metadata.Model;
+import org.intermine.xml.full.Item;
+import org.intermine.xml.full.ItemFactory;
+
+/**
+ * Creates items whose identifiers don't depend on which thread creates them, so a converter
+ * that creates items in several threads stores the same items every run, whatever the number
+ * of threads.
+ *
+ * A thread working on a line of the input takes identifiers from a block kept for the line:
+ * the k-th item of a class created for line L always gets the same number.  Other threads,
+ * usually the one thread storing items in line order, take numbers in sequence.  The blocks
+ * have the even numbers and the sequence the odd numbers, so the two never meet.  The
+ * converter should create all the items of the classes added here with the allocator, so
+ * they don't share numbers with the items it creates itself.
+ *
+ * Items can also be created without an identifier by any thread and numbered later, in
+ * order, by the one thread storing them with nextIdentifier().
+ */
+public class ItemIdAllocator
+{
+    private final ItemFactory itemFactory;
+    private final int itemsPerLine;
+    // class name to alias, only added to before the threads start
+    private final Map<String, String> aliases = new HashMap<String, String>();
+    private final Map<String, Integer> sequences = new HashMap<String, Integer>();
+    // the lines of the files read before, so numbers go on from one file to the next
+    private volatile long lineBase = 0;
+    private final ThreadLocal<Line> lines = new ThreadLocal<Line>();
+
+    /**
+     * @param model the model of the items
+     * @param itemsPerLine the most items of one class created for a line
+     */
+    public ItemIdAllocator(Model model, int itemsPerLine) {
+        this.itemFactory = new ItemFactory(model);
+        this.itemsPerLine = itemsPerLine;
+    }
+
+    /**
+     * Add a class to create items of.  Call before items are created in other threads.
+     * @param className the class name
+     * @param alias the alias the converter gives the class, the start of the identifiers
+     */
+    public void addClass(String className, String alias) {
+        aliases.put(className, alias);
+    }
+
+    /**
+     * Create items for a line in this thread until endLine() is called.
+     * @param line the line of the current file, counting from 1
+     */
+    public void startLine(long line) {
+        Line current = lines.get();
+        if (current == null) {
+            current = new Line();
+            lines.set(current);
+        }
+        current.number = lineBase + line;
+        current.counts.clear();
+    }
+
+    /**
+     * Create items in sequence in this thread again.
+     */
+    public void endLine() {
+        lines.remove();
+    }
+
+    /**
+     * Move the lines of the next file on past the lines of this one.  Call once the items of
+     * the file have all been created.
+     * @param lineCount the number of lines in the file
+     */
+    public void endFile(long lineCount) {
+        lineBase += lineCount;
+    }
+
+    /**
+     * @param className the class of the item, added with addClass()
+     * @return the item, with an identifier from the block of the current line, if any
+     */
+    public Item createItem(String className) {
+        Line line = lines.get();
+        if (line == null) {
+            return itemFactory.makeItem(nextIdentifier(className), className, "");
+        }
+        String alias = getAlias(className);
+        int k = line.next(className);
+        if (k >= itemsPerLine) {
+            throw new IllegalStateException("more than " + itemsPerLine + " items of class "
+                    + className + " created for line " + line.number);
+        }
+        long number = 2L * ((line.number - 1) * itemsPerLine + k + 1);
+        if (number > Integer.MAX_VALUE) {
+            throw new IllegalStateException("ran out of identifiers for class " + className);
+        }
+        return itemFactory.makeItem(alias + "_" + number, className, "");
+    }
+
+    /**
+     * @param className the class of an item, added with addClass()
+     * @return the next identifier in the sequence of the class
+     */
+    public String nextIdentifier(String className) {
+        String alias = getAlias(className);
+        long number = 2L * nextInSequence(className) - 1;
+        if (number > Integer.MAX_VALUE) {
+            throw new IllegalStateException("ran out of identifiers for class " + className);
+        }
+        return alias + "_" + number;
+    }
+
+    /**
+     * @param className the class of the item, added with addClass()
+     * @param n the place of the item among the items of the class created in sequence,
+     * counting from 1
+     * @return the identifier of the item
+     */
+    public String getSequenceIdentifier(String className, int n) {
+        return aliases.get(className) + "_" + (2L * n - 1);
+    }
+
+    private String getAlias(String className) {
+        String alias = aliases.get(className);
+        if (alias == null) {
+            throw new IllegalArgumentException("class " + className + " hasn't been added");
+        }
+        return alias;
+    }
+
+    private synchronized int nextInSequence(String className) {
+        Integer last = sequences.get(className);
+        int next = (last == null) ? 1 : last.intValue() + 1;
+        sequences.put(className, Integer.valueOf(next));
+        return next;
+    }
+
+    /**
+     * The line a thread is creating items for, and how many of each class it has created.
+     */
+    private static class Line
+    {
+        private long number;
+        private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        int next(String className) {
+            Integer count = counts.get(className);
+            int k = (count == null) ? 0 : count.intValue();
+            counts.put(className, Integer.valueOf(k + 1));
+            return k;
+        }
+    }
+}
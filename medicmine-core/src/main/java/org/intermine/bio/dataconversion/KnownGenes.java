@@ -0,0 +1,191 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The gene identifiers of each organism loaded by the GFF source, so converters can drop
+ * identifiers that would only make Genes nothing else refers to.  The identifiers are read
+ * from the GFF3 files the GFF source loads, the ID and any locus Dbxref of each gene, or from
+ * a file listing one identifier a line.  They are held exactly, as a sorted array, or in a
+ * Bloom filter that lets through a few unknown identifiers but is much smaller.
+ *
+ * Organisms with no file are not filtered.  The identifiers dropped are counted per organism,
+ * lookups may be made by several threads.
+ */
+public class KnownGenes
+{
+    private static final Logger LOG = Logger.getLogger(KnownGenes.class);
+
+    private final Map<String, String[]> exact = new HashMap<String, String[]>();
+    private final Map<String, BloomFilter> filters = new HashMap<String, BloomFilter>();
+    private final Map<String, AtomicLong> dropped = new HashMap<String, AtomicLong>();
+
+    /**
+     * Read the known genes.
+     *
+     * @param files space separated taxonId:path, the path a GFF3 file, a list of identifiers
+     * or a directory of them, e.g. "3880:/data/medicago/gff"
+     * @param falsePositiveRate 0 to hold the identifiers exactly, otherwise the false positive
+     * rate of a Bloom filter, e.g. 0.01
+     * @throws IOException if a file can't be read
+     */
+    public KnownGenes(String files, double falsePositiveRate) throws IOException {
+        Map<String, List<File>> taxonFiles = new HashMap<String, List<File>>();
+        for (String entry : files.trim().split("\\s+")) {
+            int colon = entry.indexOf(':');
+            if (colon < 1) {
+                throw new IllegalArgumentException("expected taxonId:path, not " + entry);
+            }
+            String taxonId = entry.substring(0, colon);
+            if (!taxonFiles.containsKey(taxonId)) {
+                taxonFiles.put(taxonId, new ArrayList<File>());
+            }
+            addFiles(taxonFiles.get(taxonId), new File(entry.substring(colon + 1)));
+        }
+        for (Map.Entry<String, List<File>> entry : taxonFiles.entrySet()) {
+            String taxonId = entry.getKey();
+            // read the identifiers sorted, then turn them into the array or filter
+            TreeSet<String> identifiers = new TreeSet<String>();
+            for (File file : entry.getValue()) {
+                read(file, identifiers);
+            }
+            if (falsePositiveRate > 0) {
+                BloomFilter filter = new BloomFilter(identifiers.size(), falsePositiveRate);
+                for (String identifier : identifiers) {
+                    filter.add(identifier);
+                }
+                filters.put(taxonId, filter);
+            } else {
+                exact.put(taxonId, identifiers.toArray(new String[identifiers.size()]));
+            }
+            dropped.put(taxonId, new AtomicLong());
+            LOG.info("Read " + identifiers.size() + " known genes for " + taxonId);
+        }
+    }
+
+    /**
+     * @param taxonId the organism
+     * @param identifier the gene identifier, as it would be stored as the primaryIdentifier
+     * @return false if the organism has known genes and this isn't one of them, the identifier
+     * is then counted as dropped
+     */
+    public boolean isKnown(String taxonId, String identifier) {
+        AtomicLong count = dropped.get(taxonId);
+        if (count == null) {
+            return true;
+        }
+        boolean known;
+        BloomFilter filter = filters.get(taxonId);
+        if (filter != null) {
+            known = filter.mightContain(identifier);
+        } else {
+            known = Arrays.binarySearch(exact.get(taxonId), identifier) >= 0;
+        }
+        if (!known) {
+            count.incrementAndGet();
+        }
+        return known;
+    }
+
+    /**
+     * @param taxonId the organism
+     * @return the number of times an identifier of the organism was dropped
+     */
+    public long getDropped(String taxonId) {
+        AtomicLong count = dropped.get(taxonId);
+        return (count == null) ? 0 : count.get();
+    }
+
+    /**
+     * Log the number of identifiers dropped for each organism.
+     * @param log the log of the converter
+     */
+    public void logDropped(Logger log) {
+        for (Map.Entry<String, AtomicLong> entry : dropped.entrySet()) {
+            log.info("Dropped " + entry.getValue().get() + " unknown gene identifiers for "
+                    + entry.getKey());
+        }
+    }
+
+    private static void addFiles(List<File> files, File file) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            Arrays.sort(children);
+            for (File child : children) {
+                if (!child.isDirectory() && !child.getName().startsWith(".")) {
+                    files.add(child);
+                }
+            }
+        } else {
+            files.add(file);
+        }
+    }
+
+    private static void read(File file, TreeSet<String> identifiers) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("##FASTA")) {
+                    // the sequences at the end of a GFF3 file
+                    break;
+                }
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] columns = line.split("\t", -1);
+                if (columns.length < 9) {
+                    identifiers.add(columns[0].trim());
+                } else if (columns[2].toLowerCase().endsWith("gene")) {
+                    // gene, and subclasses such as transposable_element_gene
+                    readGene(columns[8], identifiers);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void readGene(String attributes, TreeSet<String> identifiers) {
+        for (String attribute : attributes.split(";")) {
+            int equals = attribute.indexOf('=');
+            if (equals < 0) {
+                continue;
+            }
+            String name = attribute.substring(0, equals).trim();
+            String value = attribute.substring(equals + 1).trim();
+            if ("ID".equals(name)) {
+                identifiers.add(value);
+            } else if ("Dbxref".equals(name)) {
+                // the locus is stored as the secondaryIdentifier
+                for (String ref : value.split(",")) {
+                    if (ref.trim().startsWith("locus:")) {
+                        identifiers.add(ref.trim().substring("locus:".length()));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+/**
+ * A set of longs using open addressing with linear probing, so that neither lookups nor
+ * inserts allocate.  Used to hold pairs of int ordinals packed into one long.
+ */
+public class LongOpenHashSet
+{
+    private static final long EMPTY = 0L;
+
+    private long[] keys;
+    private int mask;
+    private int size = 0;
+    // EMPTY marks a free slot, so it is held outside the table
+    private boolean hasEmptyKey = false;
+
+    /**
+     * Construct an empty set.
+     */
+    public LongOpenHashSet() {
+        this(1024);
+    }
+
+    /**
+     * Construct an empty set.
+     * @param expected the expected number of elements
+     */
+    public LongOpenHashSet(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        keys = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Pack two ints into a long.
+     * @param first the high int
+     * @param second the low int
+     * @return the packed pair
+     */
+    public static long pair(int first, int second) {
+        return ((long) first << 32) | (second & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param key the key
+     * @return true if the set contains key
+     */
+    public boolean contains(long key) {
+        if (key == EMPTY) {
+            return hasEmptyKey;
+        }
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            long existing = keys[slot];
+            if (existing == EMPTY) {
+                return false;
+            }
+            if (existing == key) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return true if the key was not already in the set
+     */
+    public boolean add(long key) {
+        if (key == EMPTY) {
+            boolean added = !hasEmptyKey;
+            hasEmptyKey = true;
+            if (added) {
+                size++;
+            }
+            return added;
+        }
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            long existing = keys[slot];
+            if (existing == key) {
+                return false;
+            }
+            if (existing == EMPTY) {
+                keys[slot] = key;
+                size++;
+                // keep the table at most half full
+                if (size * 2 > keys.length) {
+                    rehash();
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of keys in the set
+     */
+    public int size() {
+        return size;
+    }
+
+    private int slot(long key) {
+        // murmur3 finalizer, spreads the packed ordinals over the table
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    private void rehash() {
+        long[] old = keys;
+        keys = new long[old.length * 2];
+        mask = keys.length - 1;
+        for (long key : old) {
+            if (key != EMPTY) {
+                int slot = slot(key);
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+            }
+        }
+    }
+}
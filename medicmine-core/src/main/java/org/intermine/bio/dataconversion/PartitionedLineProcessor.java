@@ -0,0 +1,237 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Processes the lines of a file with several threads while keeping the output in line order.
+ * Lines are read in chunks and each line is given to a partition by a hash, usually of
+ * the pair of genes it is about, so all the lines about the same thing go to the same
+ * partition, in file order.  Each partition has its own thread, so state kept per partition
+ * needs no locking.  The records made from the lines are written by the calling thread, in
+ * the order of the lines, so anything that must happen in a fixed order (creating and
+ * storing items) gives the same result as processing the lines one after another.  Items
+ * created in map() with an ItemIdAllocator are numbered by their line, so they are the same
+ * whatever the number of partitions.
+ *
+ * @param <R> the type of the records made from the lines
+ */
+public abstract class PartitionedLineProcessor<R>
+{
+    private static final int CHUNK_SIZE = 10000;
+    // chunks being processed while the oldest is written
+    private static final int CHUNKS_IN_FLIGHT = 4;
+
+    private final int partitions;
+    private final ItemIdAllocator ids;
+
+    /**
+     * @param partitions the number of partitions, and threads
+     */
+    public PartitionedLineProcessor(int partitions) {
+        this(partitions, null);
+    }
+
+    /**
+     * @param partitions the number of partitions, and threads
+     * @param ids the allocator to start each line with before map() is called, or null
+     */
+    public PartitionedLineProcessor(int partitions, ItemIdAllocator ids) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be at least 1: " + partitions);
+        }
+        this.partitions = partitions;
+        this.ids = ids;
+    }
+
+    /**
+     * @return the number of partitions
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Choose the partition of a line.  Called by the thread reading the file.
+     * @param line the line
+     * @return a hash of the line, lines with the same hash go to the same partition
+     */
+    protected abstract int hash(String line);
+
+    /**
+     * Make a record from a line.  Called by the thread of the partition.
+     * @param partition the partition of the line
+     * @param line the line
+     * @return the record, or null to skip the line
+     * @throws Exception if the line can't be processed
+     */
+    protected abstract R map(int partition, String line) throws Exception;
+
+    /**
+     * Write a record.  Called by the thread calling process(), in the order of the lines.
+     * @param record the record
+     * @throws Exception if the record can't be written
+     */
+    protected abstract void write(R record) throws Exception;
+
+    /**
+     * Process all lines of a file.
+     * @param reader the file
+     * @throws Exception if a line can't be processed or written
+     */
+    public void process(BufferedReader reader) throws Exception {
+        List<ExecutorService> executors = new ArrayList<ExecutorService>();
+        for (int i = 0; i < partitions; i++) {
+            // one thread per partition keeps each partition in line order
+            executors.add(Executors.newSingleThreadExecutor());
+        }
+        try {
+            LinkedList<Chunk> inFlight = new LinkedList<Chunk>();
+            String[] lines = new String[CHUNK_SIZE];
+            long lineCount = 0;
+            int size;
+            while ((size = readChunk(reader, lines)) > 0) {
+                inFlight.add(submit(executors, lines, size, lineCount));
+                lineCount += size;
+                lines = new String[CHUNK_SIZE];
+                if (inFlight.size() >= CHUNKS_IN_FLIGHT) {
+                    writeChunk(inFlight.removeFirst());
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                writeChunk(inFlight.removeFirst());
+            }
+            if (ids != null) {
+                ids.endFile(lineCount);
+            }
+        } finally {
+            for (ExecutorService executor : executors) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Spread the hash over the partitions.
+     * @param hash the hash of a line
+     * @return the partition
+     */
+    protected int partition(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return (hash & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * Hash part of a line without making a substring.
+     * @param s the line
+     * @param start the start of the part
+     * @param end the end of the part
+     * @return the same hash as s.substring(start, end).hashCode()
+     */
+    public static int hash(String s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + s.charAt(i);
+        }
+        return hash;
+    }
+
+    private static int readChunk(BufferedReader reader, String[] chunk) throws Exception {
+        int size = 0;
+        String line;
+        while (size < chunk.length && (line = reader.readLine()) != null) {
+            chunk[size++] = line;
+        }
+        return size;
+    }
+
+    private Chunk submit(List<ExecutorService> executors, final String[] lines,
+            final int size, final long firstLine) {
+        final Chunk chunk = new Chunk(size);
+        for (int i = 0; i < size; i++) {
+            chunk.linePartitions[i] = partition(hash(lines[i]));
+        }
+        for (int p = 0; p < partitions; p++) {
+            final int partition = p;
+            chunk.futures.add(executors.get(p).submit(new Callable<Object[]>() {
+                public Object[] call() throws Exception {
+                    Object[] records = new Object[size];
+                    for (int i = 0; i < size; i++) {
+                        if (chunk.linePartitions[i] != partition) {
+                            continue;
+                        }
+                        if (ids == null) {
+                            records[i] = map(partition, lines[i]);
+                            continue;
+                        }
+                        ids.startLine(firstLine + i + 1);
+                        try {
+                            records[i] = map(partition, lines[i]);
+                        } finally {
+                            ids.endLine();
+                        }
+                    }
+                    return records;
+                }
+            }));
+        }
+        return chunk;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeChunk(Chunk chunk) throws Exception {
+        Object[][] records = new Object[partitions][];
+        for (int p = 0; p < partitions; p++) {
+            try {
+                records[p] = chunk.futures.get(p).get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+        for (int i = 0; i < chunk.size; i++) {
+            Object record = records[chunk.linePartitions[i]][i];
+            if (record != null) {
+                write((R) record);
+            }
+        }
+    }
+
+    /**
+     * A chunk of lines being processed, with a future per partition giving the records of the
+     * chunk by line, null where the line is in another partition or was skipped.
+     */
+    private static class Chunk
+    {
+        private final int size;
+        private final int[] linePartitions;
+        private final List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>();
+
+        Chunk(int size) {
+            this.size = size;
+            this.linePartitions = new int[size];
+        }
+    }
+}
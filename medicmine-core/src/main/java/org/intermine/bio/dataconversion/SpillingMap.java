@@ -0,0 +1,512 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A map of strings that keeps within a heap budget by moving the entries least recently used
+ * to disk.  The entries on the heap are the hot tier.  Entries evicted from it are appended to
+ * a memory-mapped data file and found with a memory-mapped hash table, so the disk tier costs
+ * no heap however many entries it holds, and its pages are cached by the operating system.
+ * An entry read from disk moves back to the hot tier.
+ *
+ * With no budget the entries are kept in a plain HashMap, they only move to the hot tier when
+ * a budget is set.  Nothing is written to disk until the hot tier is over the budget.
+ * Replaced values stay in the data file until close(), which deletes the files.  Not for keys
+ * or values longer than a few megabytes.
+ *
+ * Not thread-safe, threads sharing a map synchronize on it.
+ */
+public class SpillingMap
+{
+    private static final Logger LOG = Logger.getLogger(SpillingMap.class);
+    private static final String ENCODING = "UTF-8";
+    // a rough size of an entry on the heap besides its characters: the strings, the entry
+    // of the map and the Hot value
+    private static final int ENTRY_OVERHEAD = 150;
+    private static final int SEGMENT_SIZE = 64 << 20;
+    private static final long INITIAL_SLOTS = 1 << 16;
+
+    private final String name;
+    private final File dir;
+    private long heapBudget;
+    // all the entries while there is no budget, null once there is one
+    private Map<String, String> plain = null;
+    // access order, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Hot> hot = new LinkedHashMap<String, Hot>(16, 0.75f, true);
+    private long hotBytes = 0;
+    // hot entries that aren't on disk, the size is these and the entries on disk
+    private int hotOnly = 0;
+
+    private RandomAccessFile dataFile = null;
+    private File dataPath = null;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private long dataEnd = 0;
+    private MappedLongs index = null;
+    private long diskCount = 0;
+    private long spilled = 0;
+
+    /**
+     * @param name the name of the map, for the files and the log
+     * @param heapBudget the bytes the entries on the heap may take, about, Long.MAX_VALUE for
+     * no budget
+     * @param dir the directory for the files, null for the default temporary directory
+     */
+    public SpillingMap(String name, long heapBudget, File dir) {
+        this.name = name;
+        this.heapBudget = heapBudget;
+        this.dir = dir;
+        if (heapBudget == Long.MAX_VALUE) {
+            plain = new HashMap<String, String>();
+        }
+    }
+
+    /**
+     * @param size a number of bytes, or kilobytes, megabytes or gigabytes ending k, m or g,
+     * e.g. 512m
+     * @return the number of bytes
+     */
+    public static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = 1;
+        char last = s.isEmpty() ? ' ' : s.charAt(s.length() - 1);
+        if (last == 'k') {
+            unit = 1L << 10;
+        } else if (last == 'm') {
+            unit = 1L << 20;
+        } else if (last == 'g') {
+            unit = 1L << 30;
+        }
+        if (unit > 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        try {
+            return Long.parseLong(s) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a size: " + size);
+        }
+    }
+
+    /**
+     * @param heapBudget the bytes the entries on the heap may take, about
+     * @throws IOException if entries over the budget can't be written to disk
+     */
+    public void setHeapBudget(long heapBudget) throws IOException {
+        this.heapBudget = heapBudget;
+        if (plain != null) {
+            if (heapBudget == Long.MAX_VALUE) {
+                return;
+            }
+            for (Map.Entry<String, String> entry : plain.entrySet()) {
+                add(entry.getKey(), new Hot(entry.getValue(), false, false));
+            }
+            hotOnly = plain.size();
+            plain = null;
+        }
+        evict();
+    }
+
+    /**
+     * @param key the key
+     * @return the value, or null
+     * @throws IOException if the disk tier can't be read
+     */
+    public String get(String key) throws IOException {
+        if (plain != null) {
+            return plain.get(key);
+        }
+        Hot entry = hot.get(key);
+        if (entry != null) {
+            return entry.value;
+        }
+        if (diskCount == 0) {
+            return null;
+        }
+        long slot = find(key);
+        if (slot < 0) {
+            return null;
+        }
+        String value = readValue(index.get(slot * 2 + 1) - 1);
+        // on disk already, so it can be dropped again without writing
+        add(key, new Hot(value, true, true));
+        evict();
+        return value;
+    }
+
+    /**
+     * @param key the key
+     * @return true if the map has a value for the key
+     * @throws IOException if the disk tier can't be read
+     */
+    public boolean containsKey(String key) throws IOException {
+        return get(key) != null;
+    }
+
+    /**
+     * @param key the key
+     * @param value the value
+     * @throws IOException if entries over the budget can't be written to disk
+     */
+    public void put(String key, String value) throws IOException {
+        if (value == null) {
+            throw new IllegalArgumentException("null value for " + key);
+        }
+        if (plain != null) {
+            plain.put(key, value);
+            return;
+        }
+        Hot entry = hot.get(key);
+        if (entry != null) {
+            hotBytes += 2L * (value.length() - entry.value.length());
+            entry.value = value;
+            entry.clean = false;
+        } else {
+            boolean onDisk = diskCount > 0 && find(key) >= 0;
+            add(key, new Hot(value, onDisk, false));
+            if (!onDisk) {
+                hotOnly++;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public long size() {
+        if (plain != null) {
+            return plain.size();
+        }
+        return diskCount + hotOnly;
+    }
+
+    /**
+     * @return the number of keys on disk
+     */
+    public long getDiskSize() {
+        return diskCount;
+    }
+
+    /**
+     * Delete the files of the disk tier, the map is empty after.  The files are unmapped
+     * first, where the JVM can't unmap them and the platform won't delete a mapped file they
+     * are deleted when the JVM exits.
+     */
+    public void close() {
+        if (dataFile != null) {
+            LOG.info(name + ": moved " + spilled + " entries to disk, " + diskCount
+                    + " keys and " + dataEnd + " bytes on disk");
+            for (MappedByteBuffer segment : segments) {
+                unmap(segment);
+            }
+            segments.clear();
+            try {
+                dataFile.close();
+            } catch (IOException e) {
+                // only deleting it
+            }
+            delete(dataPath);
+            dataFile = null;
+        }
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+        if (plain != null) {
+            plain.clear();
+        }
+        hot.clear();
+        hotBytes = 0;
+        hotOnly = 0;
+        diskCount = 0;
+        dataEnd = 0;
+    }
+
+    private void add(String key, Hot entry) {
+        hot.put(key, entry);
+        hotBytes += ENTRY_OVERHEAD + 2L * (key.length() + entry.value.length());
+    }
+
+    /**
+     * Move the least recently used entries to disk until the hot tier is within the budget.
+     */
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Hot>> eldest = hot.entrySet().iterator();
+        while (hotBytes > heapBudget && eldest.hasNext()) {
+            Map.Entry<String, Hot> entry = eldest.next();
+            String key = entry.getKey();
+            Hot value = entry.getValue();
+            eldest.remove();
+            hotBytes -= ENTRY_OVERHEAD + 2L * (key.length() + value.value.length());
+            if (!value.clean) {
+                write(key, value.value, value.onDisk);
+                spilled++;
+                if (!value.onDisk) {
+                    hotOnly--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Append an entry to the data file and point the index at it.
+     */
+    private void write(String key, String value, boolean onDisk) throws IOException {
+        if (dataFile == null) {
+            open();
+        }
+        byte[] keyBytes = key.getBytes(ENCODING);
+        byte[] valueBytes = value.getBytes(ENCODING);
+        int length = 8 + keyBytes.length + valueBytes.length;
+        if (length > SEGMENT_SIZE) {
+            throw new IllegalArgumentException("entry too long to move to disk: " + key);
+        }
+        long position = dataEnd;
+        if (position / SEGMENT_SIZE != (position + length - 1) / SEGMENT_SIZE) {
+            // records don't cross segments
+            position = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+        }
+        ByteBuffer segment = segment(position).duplicate();
+        segment.position((int) (position % SEGMENT_SIZE));
+        segment.putInt(keyBytes.length);
+        segment.put(keyBytes);
+        segment.putInt(valueBytes.length);
+        segment.put(valueBytes);
+        dataEnd = position + length;
+
+        long hash = hash(keyBytes);
+        long slot = onDisk ? find(key) : -1;
+        if (slot < 0) {
+            if ((diskCount + 1) * 2 > index.slots) {
+                resize();
+            }
+            slot = hash & (index.slots - 1);
+            while (index.get(slot * 2) != 0) {
+                slot = (slot + 1) & (index.slots - 1);
+            }
+            index.set(slot * 2, hash);
+            diskCount++;
+        }
+        index.set(slot * 2 + 1, position + 1);
+    }
+
+    /**
+     * @return the slot of the key in the index, or -1
+     */
+    private long find(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(ENCODING);
+        long hash = hash(keyBytes);
+        long slot = hash & (index.slots - 1);
+        long slotHash;
+        while ((slotHash = index.get(slot * 2)) != 0) {
+            if (slotHash == hash && keyEquals(index.get(slot * 2 + 1) - 1, keyBytes)) {
+                return slot;
+            }
+            slot = (slot + 1) & (index.slots - 1);
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(long position, byte[] keyBytes) {
+        ByteBuffer segment = segment(position);
+        int offset = (int) (position % SEGMENT_SIZE);
+        if (segment.getInt(offset) != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (segment.get(offset + 4 + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readValue(long position) throws UnsupportedEncodingException {
+        ByteBuffer segment = segment(position);
+        int offset = (int) (position % SEGMENT_SIZE);
+        offset += 4 + segment.getInt(offset);
+        byte[] valueBytes = new byte[segment.getInt(offset)];
+        ByteBuffer read = segment.duplicate();
+        read.position(offset + 4);
+        read.get(valueBytes);
+        return new String(valueBytes, ENCODING);
+    }
+
+    private MappedByteBuffer segment(long position) {
+        int i = (int) (position / SEGMENT_SIZE);
+        while (segments.size() <= i) {
+            try {
+                segments.add(dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                        (long) segments.size() * SEGMENT_SIZE, SEGMENT_SIZE));
+            } catch (IOException e) {
+                throw new RuntimeException("failed to map " + dataPath, e);
+            }
+        }
+        return segments.get(i);
+    }
+
+    private void open() throws IOException {
+        dataPath = File.createTempFile(name, ".data", dir);
+        dataPath.deleteOnExit();
+        dataFile = new RandomAccessFile(dataPath, "rw");
+        index = new MappedLongs(name, INITIAL_SLOTS, dir);
+    }
+
+    /**
+     * Double the index, the entries are placed again by the hashes kept in it.
+     */
+    private void resize() throws IOException {
+        MappedLongs old = index;
+        index = new MappedLongs(name, old.slots * 2, dir);
+        for (long i = 0; i < old.slots; i++) {
+            long hash = old.get(i * 2);
+            if (hash != 0) {
+                long slot = hash & (index.slots - 1);
+                while (index.get(slot * 2) != 0) {
+                    slot = (slot + 1) & (index.slots - 1);
+                }
+                index.set(slot * 2, hash);
+                index.set(slot * 2 + 1, old.get(i * 2 + 1));
+            }
+        }
+        old.close();
+    }
+
+    /**
+     * Release the mapping of a buffer now rather than when it is garbage collected, which is
+     * the only way before Java 9 and is used if neither way is allowed.  The buffer mustn't be
+     * used after.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object bufferCleaner = cleaner.invoke(buffer);
+                bufferCleaner.getClass().getMethod("clean").invoke(bufferCleaner);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            LOG.debug("couldn't unmap a buffer, it is released when garbage collected", e);
+        }
+    }
+
+    private static void delete(File path) {
+        if (!path.delete()) {
+            LOG.info("couldn't delete " + path + " yet, it is deleted when the JVM exits");
+        }
+    }
+
+    /**
+     * FNV-1a of the key, never 0 as 0 marks an empty slot.
+     */
+    private static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 29;
+        return (hash == 0) ? 1 : hash;
+    }
+
+    /**
+     * An entry in the hot tier.
+     */
+    private static class Hot
+    {
+        private String value;
+        // the key is in the index
+        private final boolean onDisk;
+        // the value on disk is this value
+        private boolean clean;
+
+        Hot(String value, boolean onDisk, boolean clean) {
+            this.value = value;
+            this.onDisk = onDisk;
+            this.clean = clean;
+        }
+    }
+
+    /**
+     * The hash table of the disk tier, a hash and a position a slot, in a memory-mapped file.
+     */
+    private static class MappedLongs
+    {
+        // longs a mapping, each mapping is at most 1GB
+        private static final int CHUNK = 1 << 27;
+
+        private final long slots;
+        private final File path;
+        private final RandomAccessFile file;
+        private final List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+
+        MappedLongs(String name, long slots, File dir) throws IOException {
+            this.slots = slots;
+            path = File.createTempFile(name, ".index", dir);
+            path.deleteOnExit();
+            file = new RandomAccessFile(path, "rw");
+            long longs = slots * 2;
+            for (long start = 0; start < longs; start += CHUNK) {
+                long length = Math.min(CHUNK, longs - start);
+                // a new file reads as zeros, so all the slots are empty
+                chunks.add(file.getChannel().map(FileChannel.MapMode.READ_WRITE, start * 8,
+                        length * 8));
+            }
+        }
+
+        long get(long i) {
+            return chunks.get((int) (i / CHUNK)).getLong((int) (i % CHUNK) * 8);
+        }
+
+        void set(long i, long value) {
+            chunks.get((int) (i / CHUNK)).putLong((int) (i % CHUNK) * 8, value);
+        }
+
+        void close() {
+            for (MappedByteBuffer chunk : chunks) {
+                unmap(chunk);
+            }
+            chunks.clear();
+            try {
+                file.close();
+            } catch (IOException e) {
+                // only deleting it
+            }
+            delete(path);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads tab delimited files a line at a time into one reused buffer.  Comment lines starting
+ * with # and blank lines are skipped, like FormattedTextParser.  The converter declares the
+ * columns it uses, and a column only becomes a String when it is asked for, so the columns
+ * of lines that are skipped, and columns that are never used, cost nothing but finding
+ * their tabs.  Columns can be compared and parsed as numbers without making a String.
+ *
+ * The values returned are only for the current line, a TsvReader is used by one thread.
+ */
+public class TsvReader
+{
+    private static final int BUFFER_SIZE = 65536;
+    // powers of ten that are exact doubles, for parsing numbers without a String
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final Reader reader;
+    private final char[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    // the columns the converter uses, null for all of them
+    private final boolean[] declared;
+    // the tabs are found up to this column when a line is read, the rest when needed
+    private final int lastDeclared;
+
+    private char[] line = new char[256];
+    private int length = 0;
+    // the start of each column found so far, the column ends a character before the next
+    private int[] starts = new int[16];
+    private int found = 0;
+    private boolean complete = false;
+    private String[] values = new String[16];
+    private int[] valueLines = new int[16];
+    private int lineNumber = 0;
+    private long linesRead = 0;
+
+    /**
+     * Read a file.
+     * @param reader the file
+     * @param columns the columns the converter uses, none for all of them
+     */
+    public TsvReader(Reader reader, int... columns) {
+        this.reader = reader;
+        this.buffer = (reader == null) ? null : new char[BUFFER_SIZE];
+        if (columns.length == 0) {
+            declared = null;
+            lastDeclared = Integer.MAX_VALUE;
+        } else {
+            int last = 0;
+            for (int column : columns) {
+                last = Math.max(last, column);
+            }
+            declared = new boolean[last + 1];
+            for (int column : columns) {
+                declared[column] = true;
+            }
+            lastDeclared = last;
+        }
+    }
+
+    /**
+     * For lines read elsewhere, see set().
+     * @param columns the columns the converter uses, none for all of them
+     */
+    public TsvReader(int... columns) {
+        this(null, columns);
+    }
+
+    /**
+     * Move to the next line that isn't a comment or blank.
+     * @return false at the end of the file
+     * @throws IOException if the file can't be read
+     */
+    public boolean next() throws IOException {
+        while (readLine()) {
+            if (split()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Make a line read elsewhere the current line.
+     * @param s the line, without the line break
+     * @return false if the line is a comment or blank, and so would be skipped by next()
+     */
+    public boolean set(String s) {
+        length = s.length();
+        ensureLine(length);
+        s.getChars(0, length, line, 0);
+        return split();
+    }
+
+    /**
+     * @return the number of lines returned so far, counting only lines that aren't skipped
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return the number of lines read from the file so far, counting comments and blank lines
+     */
+    public long getLinesRead() {
+        return linesRead;
+    }
+
+    /**
+     * @return the number of columns of the current line
+     */
+    public int getColumnCount() {
+        findTabs(Integer.MAX_VALUE);
+        return found;
+    }
+
+    /**
+     * @param column the column, from 0
+     * @return the value of the column as a String, made on the first call for the line
+     */
+    public String get(int column) {
+        check(column);
+        if (valueLines[column] != lineNumber) {
+            values[column] = new String(line, starts[column], end(column) - starts[column]);
+            valueLines[column] = lineNumber;
+        }
+        return values[column];
+    }
+
+    /**
+     * @param column the column, from 0
+     * @return true if the column is empty
+     */
+    public boolean isEmpty(int column) {
+        check(column);
+        return end(column) == starts[column];
+    }
+
+    /**
+     * @param column the column, from 0
+     * @param value the value
+     * @return true if the column is the value, without making a String
+     */
+    public boolean equals(int column, String value) {
+        check(column);
+        int start = starts[column];
+        return end(column) - start == value.length() && regionMatches(start, value);
+    }
+
+    /**
+     * @param column the column, from 0
+     * @param prefix the prefix
+     * @return true if the column starts with the prefix, without making a String
+     */
+    public boolean startsWith(int column, String prefix) {
+        check(column);
+        int start = starts[column];
+        return end(column) - start >= prefix.length() && regionMatches(start, prefix);
+    }
+
+    /**
+     * Parse a column as a double.  Plain decimals are parsed without making a String, other
+     * numbers are parsed by Double.parseDouble(), so the result is always the same.
+     * @param column the column, from 0
+     * @return the value of the column
+     * @throws NumberFormatException if the column isn't a number
+     */
+    public double getDouble(int column) {
+        check(column);
+        int i = starts[column];
+        int end = end(column);
+        boolean negative = false;
+        if (i < end && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            char c = line[i];
+            if (c >= '0' && c <= '9') {
+                if (mantissa >= MAX_EXACT_MANTISSA / 10) {
+                    return parseDouble(column);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (point) {
+                    scale--;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else if ((c == 'e' || c == 'E') && digits > 0) {
+                Integer exponent = parseExponent(i + 1, end);
+                if (exponent == null) {
+                    return parseDouble(column);
+                }
+                scale += exponent.intValue();
+                i = end;
+                break;
+            } else {
+                return parseDouble(column);
+            }
+        }
+        if (digits == 0 || scale < -22 || scale > 22) {
+            return parseDouble(column);
+        }
+        // the mantissa and the power of ten are exact, so one operation rounds correctly
+        double value = (scale < 0) ? mantissa / POWERS_OF_TEN[-scale]
+            : mantissa * POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return all the columns of the current line, for header lines
+     */
+    public String[] toArray() {
+        String[] array = new String[getColumnCount()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = new String(line, starts[i], end(i) - starts[i]);
+        }
+        return array;
+    }
+
+    private Integer parseExponent(int i, int end) {
+        boolean negative = false;
+        if (i < end && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 3) {
+            return null;
+        }
+        int exponent = 0;
+        for (; i < end; i++) {
+            char c = line[i];
+            if (c < '0' || c > '9') {
+                return null;
+            }
+            exponent = exponent * 10 + (c - '0');
+        }
+        return Integer.valueOf(negative ? -exponent : exponent);
+    }
+
+    private double parseDouble(int column) {
+        return Double.parseDouble(new String(line, starts[column], end(column) - starts[column]));
+    }
+
+    private boolean regionMatches(int start, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (line[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void check(int column) {
+        if (declared != null && (column >= declared.length || !declared[column])) {
+            throw new IllegalArgumentException("column " + column + " was not declared");
+        }
+        findTabs(column);
+        if (column >= found) {
+            throw new ArrayIndexOutOfBoundsException("line " + lineNumber + " has " + found
+                    + " columns, no column " + column);
+        }
+    }
+
+    private int end(int column) {
+        return (column + 1 < found) ? starts[column + 1] - 1 : length;
+    }
+
+    /**
+     * Find the tabs of the current line, skipping comments and blank lines.
+     */
+    private boolean split() {
+        if (length > 0 && line[0] == '#') {
+            return false;
+        }
+        int i = 0;
+        while (i < length && line[i] <= ' ') {
+            i++;
+        }
+        if (i == length) {
+            // blank
+            return false;
+        }
+        lineNumber++;
+        found = 1;
+        starts[0] = 0;
+        complete = false;
+        findTabs(lastDeclared);
+        return true;
+    }
+
+    /**
+     * Find the tabs of the columns up to and including the tab ending column, or to the end
+     * of the line.
+     */
+    private void findTabs(int column) {
+        long next = (long) column + 1;
+        if (complete || next < found) {
+            return;
+        }
+        // locals, so the loop doesn't write the fields for every character
+        char[] chars = line;
+        int end = length;
+        int n = found;
+        int i = starts[n - 1];
+        for (; i < end && n <= next; i++) {
+            if (chars[i] == '\t') {
+                if (n == starts.length) {
+                    int size = n * 2;
+                    starts = Arrays.copyOf(starts, size);
+                    values = Arrays.copyOf(values, size);
+                    valueLines = Arrays.copyOf(valueLines, size);
+                }
+                starts[n++] = i + 1;
+            }
+        }
+        found = n;
+        if (i >= end) {
+            complete = true;
+        }
+    }
+
+    /**
+     * Copy the next line into the line buffer, without the line break.
+     */
+    private boolean readLine() throws IOException {
+        if (reader == null) {
+            throw new IllegalStateException("no file to read, use set()");
+        }
+        length = 0;
+        boolean read = false;
+        while (true) {
+            if (position == limit) {
+                if (eof || !fill()) {
+                    break;
+                }
+            }
+            read = true;
+            int start = position;
+            int end = start;
+            char[] chars = buffer;
+            int stop = limit;
+            while (end < stop && chars[end] != '\n') {
+                end++;
+            }
+            position = end;
+            append(start, end);
+            if (position < limit) {
+                // the line break
+                position++;
+                break;
+            }
+        }
+        if (read) {
+            linesRead++;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return read;
+    }
+
+    private boolean fill() throws IOException {
+        int n = reader.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            eof = true;
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    private void append(int start, int end) {
+        int n = end - start;
+        ensureLine(length + n);
+        System.arraycopy(buffer, start, line, length, n);
+        length += n;
+    }
+
+    private void ensureLine(int size) {
+        if (size > line.length) {
+            line = Arrays.copyOf(line, Math.max(size, line.length * 2));
+        }
+    }
+}
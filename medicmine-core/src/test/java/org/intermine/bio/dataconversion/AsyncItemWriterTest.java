@@ -0,0 +1,138 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.intermine.dataconversion.ItemWriter;
+import org.intermine.model.fulldata.Item;
+import org.intermine.model.fulldata.ReferenceList;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.xml.full.ItemHelper;
+
+public class AsyncItemWriterTest extends TestCase
+{
+    public AsyncItemWriterTest(String arg) {
+        super(arg);
+    }
+
+    public void testOrder() throws Exception {
+        RecordingWriter delegate = new RecordingWriter(-1);
+        AsyncItemWriter writer = new AsyncItemWriter(delegate);
+        writer.setAsync(true);
+        writer.setBatchSize(100);
+        writer.setQueueSize(2);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) {
+            String identifier = "0_" + i;
+            expected.add(identifier);
+            assertNull(writer.store(item(identifier)));
+        }
+        writer.drain();
+        assertEquals(expected, delegate.identifiers);
+        assertFalse(delegate.closed);
+
+        // after draining items are stored as they are passed in
+        assertNotNull(writer.store(item("0_5000")));
+        assertEquals(5001, delegate.identifiers.size());
+        writer.close();
+        assertTrue(delegate.closed);
+    }
+
+    public void testFlushInterval() throws Exception {
+        RecordingWriter delegate = new RecordingWriter(-1);
+        AsyncItemWriter writer = new AsyncItemWriter(delegate);
+        writer.setAsync(true);
+        writer.setFlushInterval(50);
+        writer.store(item("0_1"));
+        writer.store(item("0_2"));
+        // far from a full batch, but stored once it has waited
+        long start = System.currentTimeMillis();
+        while (delegate.identifiers.size() < 2 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, delegate.identifiers.size());
+        writer.drain();
+    }
+
+    public void testError() throws Exception {
+        RecordingWriter delegate = new RecordingWriter(3);
+        AsyncItemWriter writer = new AsyncItemWriter(delegate);
+        writer.setAsync(true);
+        writer.setBatchSize(10);
+        writer.setQueueSize(1);
+        try {
+            for (int i = 0; i < 100000; i++) {
+                writer.store(item("0_" + i));
+            }
+        } catch (ObjectStoreException e) {
+            // the failure can reach the converter before close
+        }
+        try {
+            writer.drain();
+            fail("expected the failure to be thrown");
+        } catch (ObjectStoreException e) {
+            assertEquals("batch 3 failed", e.getCause().getMessage());
+        }
+    }
+
+    private Item item(String identifier) {
+        return ItemHelper.convert(new org.intermine.xml.full.Item(identifier, "Gene", ""));
+    }
+
+    /**
+     * Records the items stored, slowly, failing on the given batch.
+     */
+    private static class RecordingWriter implements ItemWriter
+    {
+        private final List<String> identifiers =
+            Collections.synchronizedList(new ArrayList<String>());
+        private final int failingBatch;
+        private int batches = 0;
+        private boolean closed = false;
+
+        RecordingWriter(int failingBatch) {
+            this.failingBatch = failingBatch;
+        }
+
+        public Integer store(Item item) {
+            identifiers.add(item.getIdentifier());
+            return Integer.valueOf(identifiers.size());
+        }
+
+        public void storeAll(Collection<Item> items) throws ObjectStoreException {
+            if (++batches == failingBatch) {
+                throw new ObjectStoreException("batch " + batches + " failed");
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new ObjectStoreException(e);
+            }
+            for (Item item : items) {
+                store(item);
+            }
+        }
+
+        public void store(ReferenceList refList, Integer itemId) {
+            // not used
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+}
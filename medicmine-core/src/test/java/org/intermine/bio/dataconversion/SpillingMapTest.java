@@ -0,0 +1,86 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SpillingMapTest extends TestCase
+{
+    public SpillingMapTest(String arg) {
+        super(arg);
+    }
+
+    public void testSpill() throws Exception {
+        // room for a few hundred entries on the heap, the index is resized a few times
+        SpillingMap map = new SpillingMap("test", 64 * 1024, null);
+        Map<String, String> expected = new HashMap<String, String>();
+        Random random = new Random(42);
+        for (int i = 0; i < 300000; i++) {
+            String key = "gene" + random.nextInt(200000);
+            String value = (i % 5 == 0) ? "" : "1_" + i;
+            // some keys are read back from disk before being replaced
+            assertEquals(expected.get(key), map.get(key));
+            map.put(key, value);
+            expected.put(key, value);
+        }
+        assertEquals(expected.size(), map.size());
+        assertTrue(map.getDiskSize() > expected.size() / 2);
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        assertNull(map.get("gene-1"));
+        assertEquals(expected.size(), map.size());
+
+        map.close();
+        assertEquals(0, map.size());
+        assertNull(map.get("gene1"));
+    }
+
+    public void testBudget() throws Exception {
+        SpillingMap map = new SpillingMap("test", Long.MAX_VALUE, null);
+        for (int i = 0; i < 1000; i++) {
+            map.put("\u00e9" + i, "v" + i);
+        }
+        assertEquals(0, map.getDiskSize());
+
+        map.setHeapBudget(0);
+        assertEquals(1000, map.getDiskSize());
+        assertEquals("v7", map.get("\u00e97"));
+        assertEquals(1000, map.size());
+        map.close();
+
+        assertEquals(512L * 1024 * 1024, SpillingMap.parseSize("512m"));
+        assertEquals(2L * 1024 * 1024 * 1024, SpillingMap.parseSize("2G"));
+        assertEquals(1000, SpillingMap.parseSize("1000"));
+    }
+
+    public void testClose() throws Exception {
+        File dir = File.createTempFile("spilling", "");
+        dir.delete();
+        dir.mkdir();
+        SpillingMap map = new SpillingMap("test", 0, dir);
+        for (int i = 0; i < 1000; i++) {
+            map.put("gene" + i, "1_" + i);
+        }
+        assertEquals(1000, map.getDiskSize());
+        assertEquals(2, dir.list().length);
+
+        // the files are unmapped and deleted
+        map.close();
+        assertEquals(0, dir.list().length);
+        dir.delete();
+    }
+}
@@ -0,0 +1,289 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.intermine.util.FormattedTextParser;
+
+public class TsvReaderTest extends TestCase
+{
+    // run the benchmark with -Dmedicmine.benchmark=true, it is skipped otherwise
+    private static final boolean BENCHMARK = Boolean.getBoolean("medicmine.benchmark");
+    private static final int LINES = 200000;
+    // the fastest of several rounds is reported, so both are timed after warming up
+    private static final int ROUNDS = 3;
+
+    public TsvReaderTest(String arg) {
+        super(arg);
+    }
+
+    public void testRead() throws Exception {
+        StringBuffer longColumn = new StringBuffer();
+        for (int i = 0; i < 100000; i++) {
+            longColumn.append((char) ('a' + i % 26));
+        }
+        String file = "# comment\n"
+            + "a\tb\t\tc\r\n"
+            + "\n"
+            + " \t \n"
+            + "x\t" + longColumn + "\t\n"
+            + "last";
+        TsvReader reader = new TsvReader(new StringReader(file));
+        assertTrue(reader.next());
+        assertEquals(4, reader.getColumnCount());
+        assertEquals("a", reader.get(0));
+        assertEquals("c", reader.get(3));
+        assertTrue(reader.isEmpty(2));
+        assertTrue(reader.equals(1, "b"));
+        assertFalse(reader.equals(1, "bb"));
+        assertTrue(reader.next());
+        assertEquals(longColumn.toString(), reader.get(1));
+        assertTrue(reader.startsWith(1, "abc"));
+        assertEquals(3, reader.getColumnCount());
+        assertTrue(reader.isEmpty(2));
+        assertTrue(reader.next());
+        assertEquals(1, reader.getColumnCount());
+        assertEquals("last", reader.get(0));
+        assertEquals(3, reader.getLineNumber());
+        assertFalse(reader.next());
+    }
+
+    public void testDeclaredColumns() throws Exception {
+        TsvReader reader = new TsvReader(0, 2);
+        assertFalse(reader.set("#x\ty\tz"));
+        assertTrue(reader.set("x\ty\tz\tw"));
+        assertEquals("z", reader.get(2));
+        try {
+            reader.get(1);
+            fail("column 1 was not declared");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertTrue(reader.set("x"));
+        try {
+            reader.get(2);
+            fail("no column 2");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testGetDouble() throws Exception {
+        String[] numbers = new String[] {"0", "-0", "1", "1.", ".5", "0.130758", "-12.5e-3",
+            "1E10", "1e-50", "123456789012345678901234", "0.1000000000000000055511151231257827",
+            "NaN", "-Infinity", "7.0f", " 3 ", "1e400"};
+        TsvReader reader = new TsvReader();
+        for (String number : numbers) {
+            reader.set("id\t" + number);
+            assertEquals(number, Double.parseDouble(number), reader.getDouble(1), 0);
+            assertEquals(number, Double.doubleToLongBits(Double.parseDouble(number)),
+                    Double.doubleToLongBits(reader.getDouble(1)));
+        }
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            String number = Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(20)
+                    - 10));
+            if (i % 2 == 0) {
+                // the 6 decimals the expression files have
+                number = String.format("%.6f", random.nextDouble() * 1000);
+            }
+            reader.set(number);
+            assertEquals(number, Double.parseDouble(number), reader.getDouble(0), 0);
+        }
+        for (String bad : new String[] {"", "-", "1e", "x", "1.2.3"}) {
+            reader.set("id\t" + bad);
+            try {
+                reader.getDouble(1);
+                fail(bad);
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Compare reading the files of each converter with FormattedTextParser and TsvReader, the
+     * way each converter uses the columns, and print the throughput of each.
+     */
+    public void testBenchmark() throws Exception {
+        if (!BENCHMARK) {
+            return;
+        }
+        Random random = new Random(0);
+
+        // GeneRIF: taxon, gene, PubMed, date, text, most lines are for other organisms
+        StringBuffer file = new StringBuffer();
+        for (int i = 0; i < LINES; i++) {
+            file.append(i % 10 == 0 ? "3880" : "9606").append('\t').append(800000 + i)
+                .append('\t').append(17550895 + i).append("\t2010-01-21 00:00\t")
+                .append("AtCCMA interacts with AtCcmB and is required for cytochrome c ")
+                .append("maturation in mitochondria ").append(i).append('\n');
+        }
+        benchmark("GenerifConverter", file.toString(), new int[] {0, 1, 2, 3, 4}, 0, "3880");
+
+        // MTGI mapping: TC, genes, aliases
+        file = new StringBuffer();
+        for (int i = 0; i < LINES; i++) {
+            file.append("TC").append(i).append("\tMedtr").append(i % 8).append('g')
+                .append(i).append(",Medtr").append(i % 8).append("g").append(i + 1)
+                .append('\t').append(i % 3 == 0 ? "na" : "TC" + (i + 7)).append('\n');
+        }
+        benchmark("MtgiGeneMappingConverter", file.toString(), new int[] {0, 1, 2}, -1, null);
+
+        // Medicago expression: mRNA, FPKM, stage
+        file = new StringBuffer();
+        for (int i = 0; i < LINES; i++) {
+            file.append("Medtr").append(i % 8).append('g').append(i).append(".1\t")
+                .append(String.format("%.6f", random.nextDouble() * 100)).append("\tstage")
+                .append(i % 12).append('\n');
+        }
+        benchmark("MedicagoExpressionConverter", file.toString(), new int[] {0, 1, 2}, -1, null);
+
+        // RNA-seq: gene then a score per experiment, scores parsed as numbers
+        file = new StringBuffer();
+        for (int i = 0; i < LINES / 10; i++) {
+            file.append("Medtr").append(i % 8).append('g').append(i);
+            for (int e = 0; e < 60; e++) {
+                file.append('\t').append(String.format("%.4f", random.nextDouble() * 50));
+            }
+            file.append('\n');
+        }
+        benchmarkScores("RnaseqExpressionConverter", file.toString());
+
+        // InParanoid: cluster, score, genes of each organism
+        file = new StringBuffer();
+        for (int i = 0; i < LINES; i++) {
+            file.append(i).append("\t1000\tAT").append(i).append("G.1 1.000 AT").append(i)
+                .append("G.2 0.567\tMedtr").append(i).append("g.1 1.000").append('\n');
+        }
+        benchmark("InparanoidHomologsConverter", file.toString(), new int[] {0, 1, 2, 3}, -1,
+                null);
+
+        // Phytozome: gene, organism, gene, organism, e-value, score, filtered on organism
+        file = new StringBuffer();
+        for (int i = 0; i < LINES; i++) {
+            file.append("Medtr").append(i).append("g\t").append(i % 5 == 0 ? "M. truncatula"
+                    : "G. max").append("\tAT").append(i).append("G\tA. thaliana\t1e-50\t100\n");
+        }
+        benchmark("PhytozomeHomologsConverter", file.toString(), new int[] {0, 1, 2, 3, 4}, 1,
+                "M. truncatula");
+
+        // PANTHER: genes, type, clade, family, filtered on the organism of the first gene
+        file = new StringBuffer();
+        for (int i = 0; i < LINES; i++) {
+            file.append(i % 5 == 0 ? "MEDTR" : "HUMAN").append("|Gene=G").append(i)
+                .append("|UniProtKB=P").append(i).append("\tARATH|TAIR=AT").append(i)
+                .append("G|UniProtKB=Q").append(i).append("\tLDO\tEukaryota\tPTHR")
+                .append(i % 1000).append('\n');
+        }
+        benchmark("MedicagoOrthoConverter", file.toString(), new int[] {0, 1, 2, 4}, 0,
+                "MEDTR|");
+    }
+
+    /**
+     * Time reading a file both ways.  With a filter column, only lines whose filter column
+     * starts with the filter value are used.
+     */
+    private void benchmark(String converter, String file, int[] columns, int filterColumn,
+            String filter) throws Exception {
+        long parser = Long.MAX_VALUE;
+        long tsv = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long[] times = time(file, columns, filterColumn, filter);
+            parser = Math.min(parser, times[0]);
+            tsv = Math.min(tsv, times[1]);
+        }
+        report(converter, file, parser, tsv);
+    }
+
+    private long[] time(String file, int[] columns, int filterColumn, String filter)
+        throws Exception {
+        long checksum = 0;
+        long start = System.nanoTime();
+        Iterator<?> lines = FormattedTextParser.parseTabDelimitedReader(new StringReader(file));
+        while (lines.hasNext()) {
+            String[] line = (String[]) lines.next();
+            if (filter != null && !line[filterColumn].startsWith(filter)) {
+                continue;
+            }
+            for (int column : columns) {
+                checksum += line[column].hashCode();
+            }
+        }
+        long parser = System.nanoTime() - start;
+
+        long tsvChecksum = 0;
+        start = System.nanoTime();
+        TsvReader reader = new TsvReader(new StringReader(file), columns);
+        while (reader.next()) {
+            if (filter != null && !reader.startsWith(filterColumn, filter)) {
+                continue;
+            }
+            for (int column : columns) {
+                tsvChecksum += reader.get(column).hashCode();
+            }
+        }
+        long tsv = System.nanoTime() - start;
+
+        assertEquals(checksum, tsvChecksum);
+        return new long[] {parser, tsv};
+    }
+
+    private void benchmarkScores(String converter, String file) throws Exception {
+        long parser = Long.MAX_VALUE;
+        long tsv = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long[] times = timeScores(file);
+            parser = Math.min(parser, times[0]);
+            tsv = Math.min(tsv, times[1]);
+        }
+        report(converter, file, parser, tsv);
+    }
+
+    private long[] timeScores(String file) throws Exception {
+        double total = 0;
+        long start = System.nanoTime();
+        Iterator<?> lines = FormattedTextParser.parseTabDelimitedReader(new StringReader(file));
+        while (lines.hasNext()) {
+            String[] line = (String[]) lines.next();
+            for (int i = 1; i < line.length; i++) {
+                total += Double.parseDouble(line[i]);
+            }
+        }
+        long parser = System.nanoTime() - start;
+
+        double tsvTotal = 0;
+        start = System.nanoTime();
+        TsvReader reader = new TsvReader(new StringReader(file));
+        while (reader.next()) {
+            int columns = reader.getColumnCount();
+            for (int i = 1; i < columns; i++) {
+                tsvTotal += reader.getDouble(i);
+            }
+        }
+        long tsv = System.nanoTime() - start;
+
+        assertEquals(total, tsvTotal, 0);
+        return new long[] {parser, tsv};
+    }
+
+    private void report(String converter, String file, long parser, long tsv) {
+        double megabytes = file.length() / 1e6;
+        System.out.println(String.format("%-28s FormattedTextParser %6.1f MB/s, TsvReader %6.1f "
+                + "MB/s, %.1fx", converter, megabytes / (parser / 1e9), megabytes / (tsv / 1e9),
+                (double) parser / tsv));
+    }
+}
@@ -13,21 +13,16 @@ package org.intermine.bio.dataconversion;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.apache.tools.ant.BuildException;
 import org.intermine.dataconversion.ItemWriter;
 import org.intermine.metadata.Model;
 import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.util.FormattedTextParser;
 import org.intermine.xml.full.Item;
 
 
@@ -35,7 +30,7 @@ import org.intermine.xml.full.Item;
  *
  * @author Vivek Krishnakumar
  */
-public class MtgiGeneMappingConverter extends BioFileConverter
+public class MtgiGeneMappingConverter extends AsyncBioFileConverter
 {
     //
     private static final String TAX_ID = "3880";
@@ -45,8 +40,19 @@ public class MtgiGeneMappingConverter extends BioFileConverter
     private static final Logger LOG = Logger.getLogger(MtgiGeneMappingConverter.class);
 
     private Item organism;
-    private Map<String, Item> unstoredItems = new HashMap<String, Item>();
-    private Map<String, Item> storedItems = new HashMap<String, Item>();
+
+    // phase 1: the mapping read as int-indexed adjacency lists, emitted in close()
+    private Map<String, Integer> tcIndexes = new HashMap<String, Integer>();
+    private List<String> tcIdentifiers = new ArrayList<String>();
+    private Map<String, Integer> geneIndexes = new HashMap<String, Integer>();
+    private List<String> geneIdentifiers = new ArrayList<String>();
+    private Map<String, Integer> aliasIndexes = new HashMap<String, Integer>();
+    private List<String> aliasIdentifiers = new ArrayList<String>();
+    // edges TC -> gene and TC -> alias
+    private IntList tcGeneFrom = new IntList();
+    private IntList tcGeneTo = new IntList();
+    private IntList tcAliasFrom = new IntList();
+    private IntList tcAliasTo = new IntList();
 
     /**
      * Constructor
@@ -66,98 +72,136 @@ public class MtgiGeneMappingConverter extends BioFileConverter
     public void process(Reader reader) throws Exception {
         File currentFile = getCurrentFile();
         if (currentFile.getName().contains("map")) {
-            processFile(reader, organism);
+            processFile(reader);
         }
     }
 
     /**
-     * Process all rows of the Gene Index mapping files
+     * Read all rows of the Gene Index mapping files, the items are created in close() once
+     * every link is known.
      *
      * @param reader
      * @throws IOException
-     * @throws ObjectStoreException
      */
-    private void processFile(Reader reader, Item organism)
-        throws IOException, ObjectStoreException {
-        Iterator<?> tsvIter;
-        try {
-            tsvIter = FormattedTextParser.parseTabDelimitedReader(reader);
-        } catch (Exception e) {
-            throw new BuildException("cannot parse file: " + getCurrentFile(), e);
-        }
+    private void processFile(Reader reader) throws IOException {
+        // TC, genes and aliases
+        TsvReader tsv = new TsvReader(reader, 0, 1, 2);
 
-        while (tsvIter.hasNext()) {
-            String[] line = (String[]) tsvIter.next();
+        while (tsv.next()) {
+            int tc = intern(tsv.get(0), tcIndexes, tcIdentifiers);
 
-            String tcIdentifier = line[0];
+            for (String geneIdentifier : tsv.get(1).split(",")) {
+                tcGeneFrom.add(tc);
+                tcGeneTo.add(intern(geneIdentifier, geneIndexes, geneIdentifiers));
+            }
 
-            // store Tentative Consensus feature
-            Item tcFeature = createFeature(tcIdentifier, "TentativeConsensus", organism, false);
+            // tcAliases from line[2] (column 3 of tsv file) if not `null` or "na"
+            if (!tsv.equals(2, "na")) {
+                for (String tcAliasId : tsv.get(2).split(",")) {
+                    tcAliasFrom.add(tc);
+                    tcAliasTo.add(intern(tcAliasId, aliasIndexes, aliasIdentifiers));
+                }
+            }
+        }
+    }
 
+    /**
+     * Store each gene and Tentative Consensus feature once, with all of its links.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws Exception {
+        String[] geneRefs = new String[geneIdentifiers.size()];
+        for (int i = 0; i < geneRefs.length; i++) {
             // identify gene feature type based on locus identifier format
-            List<String> geneIdentifiers = Arrays.asList(line[1].split(","));
-            for (String geneIdentifier : geneIdentifiers) {
-                String geneFeatureType = geneIdentifier.contains("te") ? "TransposableElementGene" : "Gene";
-                Item geneFeature = createFeature(geneIdentifier, geneFeatureType, organism, false);
-
-                // store reference to TC feature in associatedTCs collection
-                geneFeature.addToCollection("associatedTCs", tcFeature.getIdentifier());
-
-                // store reference to gene feature in associatedGenes collection
-                tcFeature.addToCollection("associatedGenes", geneFeature.getIdentifier());
+            String geneIdentifier = geneIdentifiers.get(i);
+            String geneFeatureType = geneIdentifier.contains("te")
+                ? "TransposableElementGene" : "Gene";
+            geneRefs[i] = createFeature(geneIdentifier, geneFeatureType).getIdentifier();
+        }
 
-                if (!storedItems.containsKey(geneIdentifier)) {
-                    store(geneFeature);
-                    storedItems.put(geneIdentifier, geneFeature);
-                }
+        // associatedTCs is filled in from the other side of the many-to-many
+        int[][] tcGenes = group(tcGeneFrom, tcGeneTo, tcIdentifiers.size());
+        int[][] tcAliases = group(tcAliasFrom, tcAliasTo, tcIdentifiers.size());
+        for (int i = 0; i < tcGenes.length; i++) {
+            Item tcFeature = createItem("TentativeConsensus");
+            tcFeature.setAttribute("primaryIdentifier", tcIdentifiers.get(i));
+            tcFeature.setReference("organism", organism);
+            for (int gene : tcGenes[i]) {
+                tcFeature.addToCollection("associatedGenes", geneRefs[gene]);
             }
+            store(tcFeature);
+            for (int alias : tcAliases[i]) {
+                createSynonym(tcFeature, aliasIdentifiers.get(alias), true);
+            }
+        }
+        LOG.info("Stored " + tcGenes.length + " TCs, " + geneRefs.length + " genes, "
+                + tcGeneFrom.size() + " TC-gene links and " + tcAliasFrom.size() + " aliases");
+        super.close();
+    }
 
-            // store tcAliases from line[2] (column 3 of tsv file) if not `null` or "na"
-            if (!line[2].equals("na")) {
-                List<String> tcAliases = Arrays.asList(line[2].split(","));
-                for (String tcAliasId : tcAliases) {
-                    Item synonym = storedItems.get(tcAliasId);
-                    if (synonym == null) {
-                        synonym = createSynonym(tcFeature, tcAliasId, true);
-                        storedItems.put(tcAliasId, synonym);
-                    }
-                    tcFeature.addToCollection("synonyms", synonym);
+    private static int intern(String identifier, Map<String, Integer> indexes,
+            List<String> identifiers) {
+        Integer index = indexes.get(identifier);
+        if (index == null) {
+            index = Integer.valueOf(identifiers.size());
+            indexes.put(identifier, index);
+            identifiers.add(identifier);
+        }
+        return index.intValue();
+    }
+
+    /**
+     * Group edges by their source.
+     *
+     * @param from the edge sources
+     * @param to the edge targets
+     * @param size the number of sources
+     * @return the sorted, distinct targets of each source
+     */
+    private static int[][] group(IntList from, IntList to, int size) {
+        int[] counts = new int[size];
+        for (int i = 0; i < from.size(); i++) {
+            counts[from.get(i)]++;
+        }
+        int[][] groups = new int[size][];
+        for (int i = 0; i < size; i++) {
+            groups[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int i = 0; i < from.size(); i++) {
+            int source = from.get(i);
+            groups[source][counts[source]++] = to.get(i);
+        }
+        for (int i = 0; i < size; i++) {
+            int[] group = groups[i];
+            Arrays.sort(group);
+            int distinct = 0;
+            for (int j = 0; j < group.length; j++) {
+                if (j == 0 || group[j] != group[j - 1]) {
+                    group[distinct++] = group[j];
                 }
             }
-            if (!storedItems.containsKey(tcIdentifier)) {
-                store(tcFeature);
-                storedItems.put(tcIdentifier, tcFeature);
+            if (distinct < group.length) {
+                groups[i] = Arrays.copyOf(group, distinct);
             }
         }
+        return groups;
     }
 
     /**
-     * Create and store a BioEntity item on the first time called.
+     * Create and store a BioEntity item.
      *
      * @param primaryId the primaryIdentifier
-     * @param organism the related organism Item
+     * @param type the class of the feature
      * @throws ObjectStoreException
      */
-    private Item createFeature(String primaryId, String type, Item organism, boolean store)
-        throws ObjectStoreException {
-        Item feature = null;
-
-        if (storedItems.containsKey(primaryId)) {
-            feature = storedItems.get(primaryId);
-        } else if (unstoredItems.containsKey(primaryId)) {
-            feature = unstoredItems.get(primaryId);
-        } else {
-            feature = createItem(type);
-            feature.setAttribute("primaryIdentifier", primaryId);
-            feature.setReference("organism", organism);
-            if (store) {
-                store(feature);
-                storedItems.put(primaryId, feature);
-            } else {
-                unstoredItems.put(primaryId, feature);
-            }
-        }
-
+    private Item createFeature(String primaryId, String type) throws ObjectStoreException {
+        Item feature = createItem(type);
+        feature.setAttribute("primaryIdentifier", primaryId);
+        feature.setReference("organism", organism);
+        store(feature);
         return feature;
     }
 
@@ -171,4 +215,28 @@ public class MtgiGeneMappingConverter extends BioFileConverter
         organism.setAttribute("taxonId", TAX_ID);
         store(organism);
     }
+
+    /**
+     * A growable array of ints.
+     */
+    private static class IntList
+    {
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+    }
 }
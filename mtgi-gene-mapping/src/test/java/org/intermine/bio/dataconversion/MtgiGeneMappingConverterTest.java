@@ -0,0 +1,95 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.intermine.dataconversion.ItemsTestCase;
+import org.intermine.dataconversion.MockItemWriter;
+import org.intermine.metadata.Model;
+import org.intermine.model.fulldata.Item;
+
+public class MtgiGeneMappingConverterTest extends ItemsTestCase
+{
+    Model model = Model.getInstanceByName("genomic");
+    MtgiGeneMappingConverter converter;
+    MockItemWriter itemWriter;
+
+    public MtgiGeneMappingConverterTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        itemWriter = new MockItemWriter(new HashMap<String, Item>());
+        converter = new MtgiGeneMappingConverter(itemWriter, model);
+    }
+
+    public void testProcess() throws Exception {
+        // TC100001 is on two lines, Medtr1g010010 is mapped to both TCs
+        File srcFile = new File(getClass().getClassLoader().
+                getResource("MtgiGeneMappingConverterTest_map.txt").toURI());
+        converter.setCurrentFile(srcFile);
+        FileReader reader = new FileReader(srcFile);
+        converter.process(reader);
+        reader.close();
+        converter.close();
+
+        Map<String, String> genes = new HashMap<String, String>();
+        Map<String, String> tcs = new HashMap<String, String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            String identifier = item.getIdentifier();
+            if ("Gene".equals(item.getClassName())) {
+                genes.put(identifier, item.getAttribute("primaryIdentifier").getValue());
+            } else if ("TransposableElementGene".equals(item.getClassName())) {
+                genes.put(identifier, "TE " + item.getAttribute("primaryIdentifier").getValue());
+            } else if ("TentativeConsensus".equals(item.getClassName())) {
+                tcs.put(identifier, item.getAttribute("primaryIdentifier").getValue());
+            }
+        }
+        // each gene and TC is stored once
+        assertEquals(3, genes.size());
+        assertEquals(2, tcs.size());
+
+        Map<String, Set<String>> associatedGenes = new HashMap<String, Set<String>>();
+        Set<String> synonyms = new HashSet<String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("TentativeConsensus".equals(item.getClassName())) {
+                Set<String> tcGenes = new HashSet<String>();
+                for (String refId : item.getCollection("associatedGenes").getRefIds()) {
+                    assertTrue(tcGenes.add(genes.get(refId)));
+                }
+                associatedGenes.put(item.getAttribute("primaryIdentifier").getValue(), tcGenes);
+            } else if ("Synonym".equals(item.getClassName())) {
+                synonyms.add(tcs.get(item.getReference("subject").getRefId()) + " "
+                        + item.getAttribute("value").getValue());
+            }
+        }
+        Map<String, Set<String>> expected = new HashMap<String, Set<String>>();
+        expected.put("TC100001", new HashSet<String>());
+        expected.get("TC100001").add("Medtr1g010010");
+        expected.get("TC100001").add("Medtr1g010020");
+        expected.put("TC100002", new HashSet<String>());
+        expected.get("TC100002").add("Medtr1g010010");
+        expected.get("TC100002").add("TE Medtr1te010030");
+        assertEquals(expected, associatedGenes);
+
+        Set<String> expectedSynonyms = new HashSet<String>();
+        expectedSynonyms.add("TC100002 NP100001");
+        expectedSynonyms.add("TC100002 NP100002");
+        assertEquals(expectedSynonyms, synonyms);
+    }
+}
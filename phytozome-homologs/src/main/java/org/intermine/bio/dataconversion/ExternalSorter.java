@@ -0,0 +1,228 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts and deduplicates more rows than fit in memory.  Rows are buffered, sorted and written
+ * to runs on disk, then the runs are merged and each distinct row is read once, in order.
+ * Only one buffer of rows and one row per run are held in memory.
+ */
+public class ExternalSorter
+{
+    // runs merged at once, more are merged in passes
+    private static final int MAX_FAN_IN = 64;
+    private static final String ENCODING = "UTF-8";
+
+    private final int rowsPerRun;
+    private final File dir;
+    private List<String> buffer = new ArrayList<String>();
+    private List<File> runs = new ArrayList<File>();
+    private PriorityQueue<Run> queue = null;
+    private String last = null;
+
+    /**
+     * @param rowsPerRun the number of rows to sort in memory
+     * @param dir the directory for the runs, null for the default temporary directory
+     */
+    public ExternalSorter(int rowsPerRun, File dir) {
+        this.rowsPerRun = rowsPerRun;
+        this.dir = dir;
+    }
+
+    /**
+     * Add a row.
+     * @param row the row, may not contain line breaks
+     * @throws IOException if the run can't be written
+     */
+    public void add(String row) throws IOException {
+        if (queue != null) {
+            throw new IllegalStateException("rows have already been sorted");
+        }
+        buffer.add(row);
+        if (buffer.size() >= rowsPerRun) {
+            spill();
+        }
+    }
+
+    /**
+     * Finish adding rows and start reading them.
+     * @throws IOException if the runs can't be merged
+     */
+    public void sort() throws IOException {
+        if (!buffer.isEmpty()) {
+            spill();
+        }
+        buffer = null;
+        while (runs.size() > MAX_FAN_IN) {
+            List<File> merged = new ArrayList<File>();
+            for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                List<File> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+                merged.add(merge(group));
+            }
+            runs = merged;
+        }
+        queue = open(runs);
+    }
+
+    /**
+     * @return the next distinct row, null when there are no more
+     * @throws IOException if a run can't be read
+     */
+    public String next() throws IOException {
+        String row = nextDistinct(queue, last);
+        last = row;
+        return row;
+    }
+
+    /**
+     * Delete the runs.
+     */
+    public void close() {
+        if (queue != null) {
+            for (Run run : queue) {
+                run.close();
+            }
+            queue.clear();
+        }
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    /**
+     * @return the number of runs written
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer);
+        File file = File.createTempFile("sort", ".run", dir);
+        file.deleteOnExit();
+        Writer writer = newWriter(file);
+        try {
+            String previous = null;
+            for (String row : buffer) {
+                if (!row.equals(previous)) {
+                    writer.write(row);
+                    writer.write('\n');
+                    previous = row;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        buffer.clear();
+        runs.add(file);
+    }
+
+    private File merge(List<File> group) throws IOException {
+        File file = File.createTempFile("sort", ".run", dir);
+        file.deleteOnExit();
+        PriorityQueue<Run> groupQueue = open(group);
+        Writer writer = newWriter(file);
+        try {
+            String row = null;
+            while ((row = nextDistinct(groupQueue, row)) != null) {
+                writer.write(row);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+            for (File run : group) {
+                run.delete();
+            }
+        }
+        return file;
+    }
+
+    private static PriorityQueue<Run> open(List<File> files) throws IOException {
+        PriorityQueue<Run> runQueue = new PriorityQueue<Run>(Math.max(1, files.size()));
+        for (File file : files) {
+            Run run = new Run(file);
+            if (run.row != null) {
+                runQueue.add(run);
+            } else {
+                run.close();
+            }
+        }
+        return runQueue;
+    }
+
+    private static String nextDistinct(PriorityQueue<Run> runQueue, String previous)
+        throws IOException {
+        while (!runQueue.isEmpty()) {
+            Run run = runQueue.poll();
+            String row = run.row;
+            if (run.advance()) {
+                runQueue.add(run);
+            } else {
+                run.close();
+            }
+            if (!row.equals(previous)) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    private static Writer newWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), ENCODING));
+    }
+
+    /**
+     * A sorted run being merged, ordered by its current row.
+     */
+    private static class Run implements Comparable<Run>
+    {
+        private final BufferedReader reader;
+        private String row;
+
+        Run(File file) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    ENCODING));
+            row = reader.readLine();
+        }
+
+        boolean advance() throws IOException {
+            row = reader.readLine();
+            return row != null;
+        }
+
+        void close() {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // only read from
+            }
+        }
+
+        public int compareTo(Run other) {
+            return row.compareTo(other.row);
+        }
+    }
+}
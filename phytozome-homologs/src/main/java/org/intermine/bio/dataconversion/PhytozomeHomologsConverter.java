@@ -10,17 +10,18 @@ package org.intermine.bio.dataconversion;
  *
  */
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
-import org.apache.commons.collections.keyvalue.MultiKey;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.tools.ant.BuildException;
@@ -30,13 +31,12 @@ import org.intermine.dataconversion.ItemWriter;
 import org.intermine.metadata.Model;
 import org.intermine.metadata.StringUtil;
 import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.util.FormattedTextParser;
 import org.intermine.xml.full.Item;
 
 /**
  * @author Julie Sullivan
  */
-public class PhytozomeHomologsConverter extends BioFileConverter
+public class PhytozomeHomologsConverter extends AsyncBioFileConverter
 {
     private Properties props = new Properties();
     private static final String PROP_FILE = "phytozome-homologs_config.properties";
@@ -46,17 +46,46 @@ public class PhytozomeHomologsConverter extends BioFileConverter
     private Set<String> taxonIds = new HashSet<String>();
     private Set<String> homologues = new HashSet<String>();
     private Set<String> allTaxonIds = new HashSet<String>();
-    private Map<MultiKey, String> identifiersToGenes = new HashMap<MultiKey, String>();
+    // taxonId and identifier to gene ordinal, the Genes are created in sequence so the refId
+    // of a gene is found from its ordinal, see getGeneRefId()
+    private SpillingMap identifiersToGenes =
+        new SpillingMap("phytozome-genes", Long.MAX_VALUE, null);
+    private int geneCount = 0;
     private Map<String, String> config = new HashMap<String, String>();
-    private static String evidenceRefId = null;
+    // created once per converter, so the evidence is stored by each writer that uses it
+    private String evidenceRefId = null;
     private static final Map<String, String> TYPES = new HashMap<String, String>();
     private static final String DEFAULT_IDENTIFIER_TYPE = "primaryIdentifier";
+    // gene, organism, gene, organism
+    private static final int[] COLUMNS = new int[] {0, 1, 2, 3};
     private OrganismRepository or;
     private Set<String> databasesNamesToPrepend = new HashSet<String>();
     private static final String EVIDENCE_CODE_ABBR = "AA";
     private static final String EVIDENCE_CODE_NAME = "Amino acid sequence comparison";
     private IdResolver rslv;
-    private Set<MultiKey> homologuePairs = new HashSet<MultiKey>();
+    // short names of the organisms loaded and their taxonIds, null to load all organisms
+    private String[] filterShortNames = null;
+    private String[] filterTaxonIds = null;
+    // short names of the organisms skipped by the filter that are in the repository, so each
+    // is looked up once, copied on write as the threads parsing lines read it
+    private volatile String[] checkedShortNames = new String[0];
+    // pairs of gene ordinals already stored, see LongOpenHashSet.pair()
+    private LongOpenHashSet homologuePairs = new LongOpenHashSet();
+    // store one Homologue per pair of genes rather than one in each direction
+    private boolean canonical = false;
+    // rows sorted in memory at a time when deduplicating on disk, 0 to deduplicate in memory
+    private int sortRows = 0;
+    private ExternalSorter sorter = null;
+    // lines are parsed and resolved by this many threads, partitioned by pair of genes
+    private int threads = 1;
+    private HomologueLines lines = null;
+    // Homologues are numbered by the line they are read from, so any number of threads
+    // gives the same identifiers
+    private final ItemIdAllocator ids;
+    // the genes loaded by the GFF source, genes not in it are dropped, null to keep all genes
+    private String knownGenesFiles = null;
+    private double knownGenesFalsePositives = 0;
+    private KnownGenes knownGenes = null;
 
     /**
      * Constructor
@@ -69,6 +98,10 @@ public class PhytozomeHomologsConverter extends BioFileConverter
         super(writer, model, DATA_SOURCE_NAME, DATASET_TITLE);
         readConfig();
         or = OrganismRepository.getOrganismRepository();
+        // one in each direction
+        ids = new ItemIdAllocator(model, 2);
+        ids.addClass("Homologue", alias("Homologue"));
+        ids.addClass("Gene", alias("Gene"));
     }
 
     static {
@@ -97,6 +130,80 @@ public class PhytozomeHomologsConverter extends BioFileConverter
         LOG.info("Setting list of homologues to " + homologues);
     }
 
+    /**
+     * If true, store a single Homologue for each pair of genes instead of one in each
+     * direction.  The gene with the lower taxonId, then identifier, is the gene of the
+     * Homologue, so the Homologue of a gene is in either Gene.homologues or
+     * Gene.reverseHomologues, the same with or without the external sort.
+     *
+     * @param canonical true to store one Homologue per pair
+     */
+    public void setPhytozomeHomologsCanonical(String canonical) {
+        this.canonical = Boolean.parseBoolean(canonical);
+        LOG.info("Setting canonical homologues to " + this.canonical);
+    }
+
+    /**
+     * Deduplicate the homologues on disk rather than in memory, for files with more pairs than
+     * fit in the heap.  The resolved pairs are written to sorted runs as the files are read,
+     * and the runs are merged into Homologues in close().
+     *
+     * @param sortRows the number of pairs to sort in memory at a time, 0 to deduplicate in
+     * memory
+     */
+    public void setPhytozomeHomologsExternalSort(String sortRows) {
+        this.sortRows = Integer.parseInt(sortRows);
+        LOG.info("Setting external sort rows to " + this.sortRows);
+    }
+
+    /**
+     * Parse the lines and resolve the genes with several threads.  The homologues are still
+     * stored by one thread in the order of the lines, so the items are the same as with one
+     * thread.
+     *
+     * @param threads the number of threads
+     */
+    public void setPhytozomeHomologsThreads(String threads) {
+        this.threads = Integer.parseInt(threads);
+        LOG.info("Setting threads to " + this.threads);
+    }
+
+    /**
+     * Keep the genes seen within a heap budget, the genes used least recently are moved to
+     * disk.  Unlimited if not set.
+     *
+     * @param heapBudget bytes, or with k, m or g, e.g. 512m
+     * @throws IOException if genes over the budget can't be moved to disk
+     */
+    public void setPhytozomeHomologsHeapBudget(String heapBudget) throws IOException {
+        identifiersToGenes.setHeapBudget(SpillingMap.parseSize(heapBudget));
+        LOG.info("Setting heap budget to " + heapBudget);
+    }
+
+    /**
+     * Only load genes that are also loaded by the GFF source, identifiers of other genes are
+     * dropped and counted rather than stored as Genes nothing else refers to.  Organisms
+     * without a file are not filtered.
+     *
+     * @param files space separated taxonId:path, the path a GFF3 file, a file listing one
+     * identifier a line or a directory of them
+     */
+    public void setPhytozomeHomologsKnownGenes(String files) {
+        this.knownGenesFiles = files;
+        LOG.info("Setting known genes to " + files);
+    }
+
+    /**
+     * Hold the known genes in a Bloom filter with this false positive rate rather than
+     * exactly, a few unknown genes are then kept.
+     *
+     * @param rate the false positive rate, e.g. 0.01, or 0 to hold the genes exactly
+     */
+    public void setPhytozomeHomologsKnownGenesFalsePositives(String rate) {
+        this.knownGenesFalsePositives = Double.parseDouble(rate);
+        LOG.info("Setting known genes false positive rate to " + rate);
+    }
+
     private void readConfig() {
         try {
             props.load(getClass().getClassLoader().getResourceAsStream(PROP_FILE));
@@ -118,33 +225,48 @@ public class PhytozomeHomologsConverter extends BioFileConverter
         }
     }
 
-    private String getGene(String geneId, String taxonId)
+    /**
+     * @return the ordinal of the gene
+     */
+    private int getResolvedGene(String resolvedGenePid, String taxonId)
         throws ObjectStoreException {
         String identifierType = config.get(taxonId);
         if (StringUtils.isEmpty(identifierType)) {
             identifierType = DEFAULT_IDENTIFIER_TYPE;
         }
-        String resolvedGenePid = parseIdentifier(geneId);
 
-        resolvedGenePid = resolveGene(taxonId, resolvedGenePid);
-        if (resolvedGenePid == null) {
-            return null;
+        String key = taxonId + "\t" + resolvedGenePid;
+        String ordinal;
+        try {
+            ordinal = identifiersToGenes.get(key);
+        } catch (IOException e) {
+            throw new ObjectStoreException("failed to read genes from disk", e);
         }
-
-        String refId = identifiersToGenes.get(new MultiKey(taxonId, resolvedGenePid));
-        if (refId == null) {
-            Item gene = createItem("Gene");
+        if (ordinal == null) {
+            Item gene = ids.createItem("Gene");
             if (!identifierType.equals(DEFAULT_IDENTIFIER_TYPE)) {
                 gene.setAttribute(identifierType, resolvedGenePid);
             } else {
                 gene.setAttribute(DEFAULT_IDENTIFIER_TYPE, resolvedGenePid);
             }
             gene.setReference("organism", getOrganism(taxonId));
-            refId = gene.getIdentifier();
-            identifiersToGenes.put(new MultiKey(taxonId, resolvedGenePid), refId);
+            ordinal = String.valueOf(geneCount++);
+            try {
+                identifiersToGenes.put(key, ordinal);
+            } catch (IOException e) {
+                throw new ObjectStoreException("failed to move genes to disk", e);
+            }
             store(gene);
         }
-        return refId;
+        return Integer.parseInt(ordinal);
+    }
+
+    /**
+     * @param ordinal the ordinal of a gene
+     * @return the refId of the gene, the Genes are created in sequence in ordinal order
+     */
+    private String getGeneRefId(int ordinal) {
+        return ids.getSequenceIdentifier("Gene", ordinal + 1);
     }
 
     private String parseIdentifier(String ident) {
@@ -183,68 +305,242 @@ public class PhytozomeHomologsConverter extends BioFileConverter
             rslv = IdResolverService.getIdResolverByOrganism(allTaxonIds);
         }
 
-        Iterator<String[]> lineIter = FormattedTextParser.parseTabDelimitedReader(reader);
-        while (lineIter.hasNext()) {
-            String[] bits = lineIter.next();
-            if (bits.length < 5) {
-                continue;
-            }
-
-            String gene1IdentifierString = bits[0];
-            String gene2IdentifierString = bits[2];
-
-            if (StringUtils.isEmpty(gene1IdentifierString)
-                    || StringUtils.isEmpty(gene2IdentifierString)) {
-                // blank line
+        if (filterShortNames == null && !allTaxonIds.isEmpty()) {
+            buildOrganismFilter();
+        }
+        if (knownGenesFiles != null && knownGenes == null) {
+            knownGenes = new KnownGenes(knownGenesFiles, knownGenesFalsePositives);
+        }
 
-                continue;
+        if (threads > 1) {
+            if (sortRows > 0) {
+                throw new BuildException("phytozomeHomologs.threads can't be used with "
+                        + "phytozomeHomologs.externalSort");
             }
-
-            String taxonId1 = getTaxon(bits[1]);
-            String taxonId2 = getTaxon(bits[3]);
-            if (!isValid(taxonId1, taxonId2)) {
-                // not an organism of interest, skip
-                continue;
+            if (lines == null) {
+                lines = new HomologueLines(threads);
             }
-            String type = taxonId1.equals(taxonId2) ? "P" : "O";
-            if (TYPES.get(type) == null) {
-                LOG.warn("Type " + type + " is not recognised, record not loaded.");
+            lines.process(new BufferedReader(reader));
+            return;
+        }
+        TsvReader tsv = new TsvReader(reader, COLUMNS);
+        while (tsv.next()) {
+            String[] pair = parseLine(tsv);
+            if (pair == null) {
                 continue;
             }
-
-            String gene1 = getGene(gene1IdentifierString, taxonId1);
-            String gene2 = getGene(gene2IdentifierString, taxonId2);
-
-            // file contains duplicates OR gene not resolved
-            if (homologuePairs.contains(new MultiKey(gene1, gene2)) || StringUtils.isEmpty(gene1)
-                     || StringUtils.isEmpty(gene2)) {
+            resolvePair(pair);
+            if (sortRows > 0) {
+                addRows(pair);
                 continue;
             }
+            Item[] pairHomologues;
+            ids.startLine(tsv.getLinesRead());
+            try {
+                pairHomologues = createHomologues(pair);
+            } finally {
+                ids.endLine();
+            }
+            storePair(pair, pairHomologues);
+        }
+        ids.endFile(tsv.getLinesRead());
+    }
 
-            processHomologues(gene1, gene2, type);
-            // genes can be paralogues with themselves so don't duplicate
-            if (!gene1.equals(gene2)) {
-                processHomologues(gene2, gene1, type);
+    /**
+     * @return the taxonId and gene of each side of the pair and the type, or null if the line
+     * isn't for organisms of interest
+     */
+    private String[] parseLine(TsvReader tsv) {
+        if (tsv.getColumnCount() < 5) {
+            return null;
+        }
+        String taxonId1 = null;
+        String taxonId2 = null;
+        if (filterShortNames != null) {
+            // check the organism columns without making Strings, most lines are skipped
+            taxonId1 = filterOrganism(tsv, 1);
+            taxonId2 = filterOrganism(tsv, 3);
+            if (taxonId1 == null || taxonId2 == null) {
+                // not an organism of interest, skip, but not organisms getTaxon() would fail on
+                if (!tsv.isEmpty(0) && !tsv.isEmpty(2)) {
+                    checkOrganism(tsv, 1);
+                    checkOrganism(tsv, 3);
+                }
+                return null;
             }
         }
+
+        if (tsv.isEmpty(0) || tsv.isEmpty(2)) {
+            // blank line
+
+            return null;
+        }
+        String gene1IdentifierString = tsv.get(0);
+        String gene2IdentifierString = tsv.get(2);
+
+        if (filterShortNames == null) {
+            taxonId1 = getTaxon(tsv.get(1));
+            taxonId2 = getTaxon(tsv.get(3));
+        }
+        if (!isValid(taxonId1, taxonId2)) {
+            // not an organism of interest, skip
+            return null;
+        }
+        String type = taxonId1.equals(taxonId2) ? "P" : "O";
+        if (TYPES.get(type) == null) {
+            LOG.warn("Type " + type + " is not recognised, record not loaded.");
+            return null;
+        }
+        return new String[] {taxonId1, gene1IdentifierString, taxonId2, gene2IdentifierString,
+            type};
     }
 
-    private void processHomologues(String gene1, String gene2, String type)
-        throws ObjectStoreException {
-        if (gene1 == null || gene2 == null) {
-            return;
+    /**
+     * Replace the genes of a pair with their resolved identifiers, null if not resolved.
+     */
+    private void resolvePair(String[] pair) {
+        pair[1] = filterKnown(pair[0], resolveGene(pair[0], parseIdentifier(pair[1])));
+        pair[3] = filterKnown(pair[2], resolveGene(pair[2], parseIdentifier(pair[3])));
+    }
+
+    /**
+     * @return the identifier, or null if it isn't a known gene
+     */
+    private String filterKnown(String taxonId, String identifier) {
+        if (identifier == null || knownGenes == null || knownGenes.isKnown(taxonId, identifier)) {
+            return identifier;
         }
-        Item homologue = createItem("Homologue");
-        homologue.setReference("gene", gene1);
-        homologue.setReference("homologue", gene2);
-        homologue.addToCollection("evidence", getEvidence());
+        return null;
+    }
+
+    /**
+     * Create the Homologues a pair may need, before the genes are known.  Called by the thread
+     * parsing the line.
+     * @return a Homologue for each direction, or null if a gene isn't resolved
+     */
+    private Item[] createHomologues(String[] pair) {
+        if (pair[1] == null || pair[3] == null) {
+            return null;
+        }
+        return new Item[] {createHomologue(pair[4]), createHomologue(pair[4])};
+    }
+
+    private Item createHomologue(String type) {
+        Item homologue = ids.createItem("Homologue");
         if (StringUtils.isEmpty(TYPES.get(type))) {
             homologue.setAttribute("type", type);
         } else {
             homologue.setAttribute("type", TYPES.get(type));
         }
+        return homologue;
+    }
+
+    private void storePair(String[] pair, Item[] pairHomologues) throws ObjectStoreException {
+        int gene1 = (pair[1] == null) ? -1 : getResolvedGene(pair[1], pair[0]);
+        int gene2 = (pair[3] == null) ? -1 : getResolvedGene(pair[3], pair[2]);
+
+        // gene not resolved OR file contains duplicates
+        if (pairHomologues == null
+                || homologuePairs.contains(LongOpenHashSet.pair(gene1, gene2))) {
+            return;
+        }
+
+        if (canonical) {
+            // the same gene of the pair as in addRows(), whichever order it is read in
+            if (compareGenes(pair) <= 0) {
+                processHomologues(pairHomologues[0], gene1, gene2);
+            } else {
+                processHomologues(pairHomologues[0], gene2, gene1);
+            }
+            return;
+        }
+        processHomologues(pairHomologues[0], gene1, gene2);
+        // genes can be paralogues with themselves so don't duplicate
+        if (gene1 != gene2) {
+            processHomologues(pairHomologues[1], gene2, gene1);
+        }
+    }
+
+    /**
+     * Merge the pairs sorted on disk, each distinct pair is stored once.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws Exception {
+        if (sorter != null) {
+            try {
+                sorter.sort();
+                LOG.info("Merging " + sorter.getRunCount() + " sorted runs");
+                String row;
+                while ((row = sorter.next()) != null) {
+                    String[] bits = StringUtils.splitPreserveAllTokens(row, '\t');
+                    int gene1 = getResolvedGene(bits[1], bits[0]);
+                    int gene2 = getResolvedGene(bits[3], bits[2]);
+                    storeHomologue(createHomologue(bits[4]), gene1, gene2);
+                }
+            } finally {
+                sorter.close();
+                sorter = null;
+            }
+        }
+        if (knownGenes != null) {
+            knownGenes.logDropped(LOG);
+        }
+        identifiersToGenes.close();
+        super.close();
+    }
+
+    /**
+     * Add the directions of a resolved pair to store to the sorter.
+     */
+    private void addRows(String[] pair) throws IOException {
+        if (pair[1] == null || pair[3] == null) {
+            return;
+        }
+        if (sorter == null) {
+            sorter = new ExternalSorter(sortRows, null);
+        }
+        String type = pair[4];
+        String key1 = pair[0] + "\t" + pair[1];
+        String key2 = pair[2] + "\t" + pair[3];
+        int order = compareGenes(pair);
+        if (canonical) {
+            sorter.add(order <= 0 ? key1 + "\t" + key2 + "\t" + type
+                    : key2 + "\t" + key1 + "\t" + type);
+            return;
+        }
+        sorter.add(key1 + "\t" + key2 + "\t" + type);
+        // genes can be paralogues with themselves so don't duplicate
+        if (order != 0) {
+            sorter.add(key2 + "\t" + key1 + "\t" + type);
+        }
+    }
+
+    /**
+     * Order the genes of a resolved pair by taxonId then identifier, the order of the rows
+     * sorted on disk.  In canonical mode the first gene is the gene of the Homologue.
+     * @return less than 0 if the first gene of the pair comes first, 0 if they are the same
+     */
+    private static int compareGenes(String[] pair) {
+        int order = pair[0].compareTo(pair[2]);
+        return (order != 0) ? order : pair[1].compareTo(pair[3]);
+    }
+
+    private void processHomologues(Item homologue, int gene1, int gene2)
+        throws ObjectStoreException {
+        if (!homologuePairs.add(LongOpenHashSet.pair(gene1, gene2))) {
+            return;
+        }
+        storeHomologue(homologue, gene1, gene2);
+    }
+
+    private void storeHomologue(Item homologue, int gene1, int gene2)
+        throws ObjectStoreException {
+        homologue.setReference("gene", getGeneRefId(gene1));
+        homologue.setReference("homologue", getGeneRefId(gene2));
+        homologue.addToCollection("evidence", getEvidence());
         store(homologue);
-        homologuePairs.add(new MultiKey(gene1, gene2));
     }
 
     // genes (in taxonIDs) are always processed
@@ -269,6 +565,64 @@ public class PhytozomeHomologsConverter extends BioFileConverter
         return false;
     }
 
+    /**
+     * Look up the short names of the organisms we load once, so lines of other organisms can
+     * be skipped before they are split.
+     */
+    private void buildOrganismFilter() {
+        List<String> shortNames = new ArrayList<String>();
+        List<String> filteredTaxonIds = new ArrayList<String>();
+        for (String taxonId : allTaxonIds) {
+            OrganismData od = or.getOrganismDataByTaxon(taxonId);
+            if (od == null || od.getShortName() == null) {
+                throw new BuildException("No data for `" + taxonId
+                        + "`.  Please add to repository.");
+            }
+            shortNames.add(od.getShortName());
+            filteredTaxonIds.add(taxonId);
+        }
+        filterShortNames = shortNames.toArray(new String[shortNames.size()]);
+        filterTaxonIds = filteredTaxonIds.toArray(new String[filteredTaxonIds.size()]);
+    }
+
+    /**
+     * @param tsv the line
+     * @param column the organism column
+     * @return the taxonId of the organism, null if it is not one we load
+     */
+    private String filterOrganism(TsvReader tsv, int column) {
+        for (int i = 0; i < filterShortNames.length; i++) {
+            if (tsv.equals(column, filterShortNames[i])) {
+                return filterTaxonIds[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fail on an organism that isn't in the repository, as getTaxon() does, so a misconfigured
+     * run doesn't load part of the data.  The column is only made a String the first time
+     * its organism is seen.
+     * @param tsv the line
+     * @param column the organism column
+     */
+    private void checkOrganism(TsvReader tsv, int column) {
+        for (String shortName : checkedShortNames) {
+            if (tsv.equals(column, shortName)) {
+                return;
+            }
+        }
+        String shortName = tsv.get(column);
+        getTaxon(shortName);
+        synchronized (this) {
+            if (!Arrays.asList(checkedShortNames).contains(shortName)) {
+                String[] checked = Arrays.copyOf(checkedShortNames, checkedShortNames.length + 1);
+                checked[checked.length - 1] = shortName;
+                checkedShortNames = checked;
+            }
+        }
+    }
+
     private String getTaxon(String name) {
         OrganismData od = or.getOrganismDataByShortName(name);
         if (od == null) {
@@ -326,4 +680,74 @@ public class PhytozomeHomologsConverter extends BioFileConverter
         }
         return rslv.resolveId(taxonId, identifier).iterator().next();
     }
+
+    /**
+     * A resolved pair and the Homologues created for it.
+     */
+    private static class ResolvedPair
+    {
+        private final String[] pair;
+        private final Item[] homologues;
+
+        ResolvedPair(String[] pair, Item[] homologues) {
+            this.pair = pair;
+            this.homologues = homologues;
+        }
+    }
+
+    /**
+     * Parses and resolves lines in partitions by the pair of genes, so each partition can
+     * skip the pairs it has seen before without locking.  The Homologues are created by the
+     * partitions too.
+     */
+    private class HomologueLines extends PartitionedLineProcessor<ResolvedPair>
+    {
+        // the pairs seen by each partition, both directions of a pair are in one partition
+        private final List<GenePairSet> seenPairs = new ArrayList<GenePairSet>();
+        // the columns of the line each partition is parsing
+        private final List<TsvReader> rows = new ArrayList<TsvReader>();
+
+        HomologueLines(int partitions) {
+            super(partitions, ids);
+            for (int i = 0; i < partitions; i++) {
+                seenPairs.add(new GenePairSet());
+                rows.add(new TsvReader(COLUMNS));
+            }
+        }
+
+        @Override
+        protected int hash(String line) {
+            int tab1 = line.indexOf('\t');
+            int tab2 = tab1 < 0 ? -1 : line.indexOf('\t', tab1 + 1);
+            int tab3 = tab2 < 0 ? -1 : line.indexOf('\t', tab2 + 1);
+            if (tab3 < 0) {
+                return 0;
+            }
+            // the same either way round
+            return hash(line, 0, tab1) + hash(line, tab2 + 1, tab3);
+        }
+
+        @Override
+        protected ResolvedPair map(int partition, String line) {
+            TsvReader row = rows.get(partition);
+            if (!row.set(line)) {
+                return null;
+            }
+            String[] pair = parseLine(row);
+            if (pair == null) {
+                return null;
+            }
+            if (!seenPairs.get(partition).add(pair[0], pair[1], pair[2], pair[3])) {
+                // already stored, or not resolved, the first time
+                return null;
+            }
+            resolvePair(pair);
+            return new ResolvedPair(pair, createHomologues(pair));
+        }
+
+        @Override
+        protected void write(ResolvedPair resolved) throws ObjectStoreException {
+            storePair(resolved.pair, resolved.homologues);
+        }
+    }
 }
@@ -0,0 +1,275 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.intermine.dataconversion.ItemsTestCase;
+import org.intermine.dataconversion.MockItemWriter;
+import org.intermine.metadata.Model;
+import org.intermine.model.fulldata.Item;
+
+public class PhytozomeHomologsConverterTest extends ItemsTestCase
+{
+    Model model = Model.getInstanceByName("genomic");
+    PhytozomeHomologsConverter converter;
+    MockItemWriter itemWriter;
+
+    public PhytozomeHomologsConverterTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        itemWriter = new MockItemWriter(new HashMap<String, Item>());
+        converter = new PhytozomeHomologsConverter(itemWriter, model);
+        converter.setPhytozomeHomologsOrganisms("3880 3702");
+    }
+
+    public void testExternalSort() throws Exception {
+        // repeated pairs, in both directions, and genes paired with themselves
+        StringBuffer homologs = new StringBuffer();
+        for (int i = 0; i < 1000; i++) {
+            int gene1 = i % 150;
+            int gene2 = (i * 7) % 150;
+            homologs.append("Medtr" + gene1 + "g\tM. truncatula\t");
+            if (i % 3 == 0) {
+                homologs.append("AT" + gene2 + "G\tA. thaliana");
+            } else {
+                homologs.append("Medtr" + gene2 + "g\tM. truncatula");
+            }
+            homologs.append("\t1e-50\t100\n");
+        }
+        Set<String> inMemory = homologues(homologs.toString());
+
+        setUp();
+        // small runs, so there are enough to merge in passes
+        converter.setPhytozomeHomologsExternalSort("10");
+        Set<String> external = homologues(homologs.toString());
+
+        assertEquals(inMemory, external);
+    }
+
+    public void testCanonical() throws Exception {
+        // pairs in both directions, repeated, and genes paired with themselves
+        StringBuffer homologs = new StringBuffer();
+        Set<String> pairs = new HashSet<String>();
+        for (int i = 0; i < 600; i++) {
+            String gene1 = "Medtr" + (i % 90) + "g";
+            String gene2 = (i % 3 == 0) ? "AT" + ((i * 7) % 60) + "G"
+                : "Medtr" + ((i * 7) % 90) + "g";
+            String organism2 = (i % 3 == 0) ? "A. thaliana" : "M. truncatula";
+            if (i % 2 == 0) {
+                homologs.append(gene1 + "\tM. truncatula\t" + gene2 + "\t" + organism2);
+            } else {
+                homologs.append(gene2 + "\t" + organism2 + "\t" + gene1 + "\tM. truncatula");
+            }
+            homologs.append("\t1e-50\t100\n");
+            pairs.add(gene1 + " " + gene2 + " " + ((i % 3 == 0) ? "orthologue" : "paralogue"));
+        }
+
+        Set<String> inMemory = null;
+        for (String externalSort : new String[] {null, "10"}) {
+            setUp();
+            converter.setPhytozomeHomologsCanonical("true");
+            if (externalSort != null) {
+                converter.setPhytozomeHomologsExternalSort(externalSort);
+            }
+            Set<String> homologues = homologues(homologs.toString());
+
+            for (String homologue : homologues) {
+                String[] bits = homologue.split(" ");
+                // one Homologue a pair, the gene of the lower taxonId, then identifier, first
+                assertFalse(homologue, !bits[0].equals(bits[1])
+                        && homologues.contains(bits[1] + " " + bits[0] + " " + bits[2]));
+                assertTrue(homologue, bits[0].startsWith("AT") == bits[1].startsWith("AT")
+                        ? bits[0].compareTo(bits[1]) <= 0 : bits[0].startsWith("AT"));
+            }
+            // each pair is a homologue of its gene, or a reverse homologue
+            for (String pair : pairs) {
+                String[] bits = pair.split(" ");
+                assertTrue(externalSort + " " + pair, homologues.contains(pair)
+                        || homologues.contains(bits[1] + " " + bits[0] + " " + bits[2]));
+            }
+            if (inMemory == null) {
+                inMemory = homologues;
+            } else {
+                assertEquals(inMemory, homologues);
+            }
+        }
+    }
+
+    public void testThreads() throws Exception {
+        // more lines than are processed at once, pairs repeat in both directions
+        StringBuffer homologs = new StringBuffer();
+        for (int i = 0; i < 25000; i++) {
+            int gene1 = (i * 13) % 2000;
+            int gene2 = (i * 31) % 1500;
+            if (i % 2 == 0) {
+                homologs.append("Medtr" + gene1 + "g\tM. truncatula\tAT" + gene2
+                        + "G\tA. thaliana\t1e-50\t100\n");
+            } else {
+                homologs.append("AT" + gene2 + "G\tA. thaliana\tMedtr" + gene1
+                        + "g\tM. truncatula\t1e-50\t100\n");
+            }
+        }
+        homologues(homologs.toString());
+        Set<org.intermine.xml.full.Item> sequential = itemWriter.getItems();
+
+        setUp();
+        converter.setPhytozomeHomologsThreads("4");
+        // and stored by a writer thread
+        converter.setAsyncWriter("true");
+        homologues(homologs.toString());
+
+        // the same items, with the same identifiers
+        assertEquals(sequential, itemWriter.getItems());
+    }
+
+    public void testWorkerIdentifiers() throws Exception {
+        // two files with comments, the second repeats some pairs of the first
+        String[] files = new String[2];
+        for (int f = 0; f < files.length; f++) {
+            StringBuffer homologs = new StringBuffer("# homologs " + f + "\n");
+            for (int i = 0; i < 12000; i++) {
+                if (i % 1000 == 0) {
+                    homologs.append("#\n");
+                }
+                homologs.append("Medtr" + ((i * 7 + f * 500) % 3000) + "g\tM. truncatula\tAT"
+                        + ((i * 11) % 2500) + "G\tA. thaliana\t1e-50\t100\n");
+            }
+            files[f] = homologs.toString();
+        }
+
+        Set<org.intermine.xml.full.Item> oneWorker = null;
+        for (String workers : new String[] {"1", "2", "3", "8"}) {
+            setUp();
+            converter.setPhytozomeHomologsThreads(workers);
+            for (int f = 0; f < files.length; f++) {
+                converter.setCurrentFile(new File("homologs" + f + ".txt"));
+                converter.process(new StringReader(files[f]));
+            }
+            converter.close();
+            if (oneWorker == null) {
+                oneWorker = itemWriter.getItems();
+            } else {
+                // Homologues are created by the workers, with the same identifiers
+                assertEquals(workers + " workers", oneWorker, itemWriter.getItems());
+            }
+        }
+    }
+
+    public void testHeapBudget() throws Exception {
+        StringBuffer homologs = new StringBuffer();
+        for (int i = 0; i < 5000; i++) {
+            homologs.append("Medtr" + ((i * 7) % 3000) + "g\tM. truncatula\tAT"
+                    + ((i * 11) % 2500) + "G\tA. thaliana\t1e-50\t100\n");
+        }
+        homologues(homologs.toString());
+        Set<org.intermine.xml.full.Item> onHeap = itemWriter.getItems();
+
+        setUp();
+        // most genes are moved to disk and read back
+        converter.setPhytozomeHomologsHeapBudget("16k");
+        homologues(homologs.toString());
+
+        assertEquals(onHeap, itemWriter.getItems());
+    }
+
+    public void testKnownGenes() throws Exception {
+        // the GFF source loads the even Medicago genes
+        File gff = File.createTempFile("known", ".gff3");
+        FileWriter writer = new FileWriter(gff);
+        writer.write("##gff-version 3\n");
+        for (int i = 0; i < 20; i += 2) {
+            writer.write("chr1\tJCVI\tgene\t" + (i * 100 + 1) + "\t" + (i * 100 + 50)
+                    + "\t.\t+\t.\tID=Medtr" + i + "g;Name=G" + i + "\n");
+            writer.write("chr1\tJCVI\tmRNA\t" + (i * 100 + 1) + "\t" + (i * 100 + 50)
+                    + "\t.\t+\t.\tID=Medtr" + (i + 1) + "g;Parent=Medtr" + i + "g\n");
+        }
+        writer.close();
+        StringBuffer homologs = new StringBuffer();
+        for (int i = 0; i < 20; i++) {
+            homologs.append("Medtr" + i + "g\tM. truncatula\tAT" + i + "G\tA. thaliana"
+                    + "\t1e-50\t100\n");
+        }
+
+        for (String rate : new String[] {"0", "0.01"}) {
+            setUp();
+            converter.setPhytozomeHomologsKnownGenes("3880:" + gff.getPath());
+            converter.setPhytozomeHomologsKnownGenesFalsePositives(rate);
+            Set<String> homologues = homologues(homologs.toString());
+
+            // Arabidopsis isn't filtered, the odd Medicago genes are dropped with their pairs
+            for (int i = 0; i < 20; i += 2) {
+                assertTrue(homologues.contains("Medtr" + i + "g AT" + i + "G orthologue"));
+            }
+            if ("0".equals(rate)) {
+                assertEquals(20, homologues.size());
+            }
+        }
+        gff.delete();
+    }
+
+    public void testUnknownOrganism() throws Exception {
+        // soybean is in the repository but not loaded, so its lines are skipped
+        String homologs = "Medtr1g\tM. truncatula\tAT1G\tA. thaliana\t1e-50\t100\n"
+            + "Medtr1g\tM. truncatula\tGlyma1g\tG. max\t1e-50\t100\n";
+        for (String threads : new String[] {"1", "4"}) {
+            setUp();
+            converter.setPhytozomeHomologsThreads(threads);
+            assertEquals(2, homologues(homologs).size());
+
+            // an organism missing from the repository fails the run, as it did before lines
+            // were filtered on their organisms
+            setUp();
+            converter.setPhytozomeHomologsThreads(threads);
+            try {
+                homologues(homologs + "Medtr2g\tM. truncatula\tX1\tX. unknown\t1e-50\t100\n");
+                fail("expected a BuildException with " + threads + " threads");
+            } catch (BuildException e) {
+                assertTrue(e.getMessage().contains("X. unknown"));
+            }
+        }
+    }
+
+    /**
+     * @return the homologues stored, by gene identifiers and type
+     */
+    private Set<String> homologues(String homologs) throws Exception {
+        converter.setCurrentFile(new File("homologs.txt"));
+        converter.process(new StringReader(homologs));
+        converter.close();
+
+        Map<String, String> genes = new HashMap<String, String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("Gene".equals(item.getClassName())) {
+                genes.put(item.getIdentifier(), item.getAttribute("primaryIdentifier").getValue());
+            }
+        }
+        Set<String> homologues = new HashSet<String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("Homologue".equals(item.getClassName())) {
+                assertTrue(homologues.add(genes.get(item.getReference("gene").getRefId()) + " "
+                        + genes.get(item.getReference("homologue").getRefId()) + " "
+                        + item.getAttribute("type").getValue()));
+            }
+        }
+        return homologues;
+    }
+}
@@ -14,17 +14,16 @@ package org.intermine.bio.dataconversion;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.apache.tools.ant.BuildException;
 import org.intermine.dataconversion.ItemWriter;
 import org.intermine.metadata.Model;
 import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.util.FormattedTextParser;
 import org.intermine.xml.full.Item;
 
 
@@ -32,7 +31,7 @@ import org.intermine.xml.full.Item;
  *
  * @author sc
  */
-public class RnaseqExpressionConverter extends BioFileConverter
+public class RnaseqExpressionConverter extends AsyncBioFileConverter
 {
     // TODO get those from project file?
     private static final String TAX_ID = "3880";
@@ -47,12 +46,24 @@ public class RnaseqExpressionConverter extends BioFileConverter
     private static final String TPM = "FPKM";
 
     private Item org;
-    private Map<String, String> experiments = new HashMap<String, String>();
+    // experiments are stored in close(), once the below threshold counts are known
+    private Map<String, Item> experiments = new HashMap<String, Item>();
     private Map<String, String> geneItems = new HashMap<String, String>();
     private Map<String, String> transcriptItems = new HashMap<String, String>();
+    // values not loaded in sparse mode, by experiment refId
+    private Map<String, Integer> genesBelowThreshold = new HashMap<String, Integer>();
+    private Map<String, Integer> transcriptsBelowThreshold = new HashMap<String, Integer>();
+
+    // index of each experiment in the packed vectors, in order of first appearance
+    private Map<String, Integer> experimentOrder = new LinkedHashMap<String, Integer>();
+
+    private Double threshold = null;
+    private boolean packed = false;
+    private boolean summaries = false;
 
     private int totHeaders = 0;
 
+    private Item dataSet = null;
     private String dataSetRef = null;
     /**
      * Constructor
@@ -67,6 +78,44 @@ public class RnaseqExpressionConverter extends BioFileConverter
         createDataSource();
     }
 
+    /**
+     * Set a detection threshold to load the expression matrices in sparse mode: values below
+     * the threshold are not loaded, the threshold and the number of values skipped are
+     * recorded on each RnaseqExperiment instead.
+     *
+     * @param threshold the lowest expression value loaded, e.g. 0.5
+     */
+    public void setRnaseqExpressionThreshold(String threshold) {
+        if (StringUtils.isNotBlank(threshold)) {
+            this.threshold = Double.valueOf(threshold.trim());
+            LOG.info("Loading expression values >= " + this.threshold);
+        }
+    }
+
+    /**
+     * Store the expression values of each gene or transcript as one RnaseqExpressionProfile
+     * holding a packed vector (see RnaseqExpressionVector) instead of one RnaseqExpression
+     * per experiment.  The experiment order of the vectors is set on the DataSet.  All values
+     * are packed, the threshold only applies to RnaseqExpression rows.  Values are packed as
+     * doubles, so they keep their value but not the formatting of the matrix.
+     *
+     * @param packed true to load packed vectors
+     */
+    public void setRnaseqExpressionPacked(String packed) {
+        this.packed = "true".equalsIgnoreCase(packed);
+    }
+
+    /**
+     * Also store an RnaseqExpressionSummary for each gene or transcript, computed from all its
+     * values: min, max, mean, the top experiment and the tissue-specificity index.  Off by
+     * default.
+     *
+     * @param summaries true to store summaries
+     */
+    public void setRnaseqExpressionSummaries(String summaries) {
+        this.summaries = "true".equalsIgnoreCase(summaries);
+    }
+
     /**
      *
      *
@@ -112,20 +161,35 @@ public class RnaseqExpressionConverter extends BioFileConverter
      */
     private void processFile(Reader reader, String type, Item organism)
         throws IOException, ObjectStoreException {
-        Iterator<?> tsvIter;
-        try {
-            tsvIter = FormattedTextParser.parseTabDelimitedReader(reader);
-        } catch (Exception e) {
-            throw new BuildException("cannot parse file: " + getCurrentFile(), e);
-        }
+        // every column is a score, they are parsed as numbers and only made Strings if stored
+        TsvReader tsv = new TsvReader(reader);
         String [] headers = null;
         String [] currentExp = null;
+        // experiment refIds and vector indexes by column, resolved once from the header row
+        String [] columnExperiments = null;
+        int [] columnIndexes = null;
+        // the feature map and class for this file, chosen once
+        Map<String, String> features = null;
+        String featureClass = null;
+        Map<String, Integer> belowThreshold = null;
+        if ("gene".equals(type)) {
+            features = geneItems;
+            featureClass = "Gene";
+            belowThreshold = genesBelowThreshold;
+        } else if ("transcript".equals(type)) {
+            features = transcriptItems;
+            featureClass = "Transcript";
+            belowThreshold = transcriptsBelowThreshold;
+        }
+        // sparse mode: values skipped in this file by column
+        int [] columnSkipped = null;
+        // the scores of the current row, NaN if not a number
+        double [] rowValues = null;
         int lineNumber = 0;
 
-        while (tsvIter.hasNext()) {
-            String[] line = (String[]) tsvIter.next();
-            LOG.debug("BIOENTITY " + line[0]);
+        while (tsv.next()) {
             if (lineNumber == 0) {
+                String[] line = tsv.toArray();
                 // column headers - strip off any extra columns
                 int end = 0;
                 for (int i = 0; i < line.length; i++) {
@@ -137,56 +201,191 @@ public class RnaseqExpressionConverter extends BioFileConverter
                 headers = new String[end];
                 System.arraycopy(line, 0, headers, 0, end);
                 totHeaders = headers.length;
+                if (features != null) {
+                    columnIndexes = new int[totHeaders];
+                    columnExperiments = compileColumns(headers, columnIndexes);
+                    columnSkipped = new int[totHeaders];
+                    rowValues = new double[totHeaders];
+                }
             } else {
-                String primaryId = line[0]; //Gene id
+                String primaryId = tsv.get(0); //Gene id
+                LOG.debug("BIOENTITY " + primaryId);
                 // if empty lines at the end of the file
                 if (StringUtils.isEmpty(primaryId)) {
                     break;
                 }
-                if ("gene".equalsIgnoreCase(type)) {
-                    createFeature(primaryId, "Gene");
-                }
-                if ("transcript".equalsIgnoreCase(type)) {
-                    createFeature(primaryId, "Transcript");
-                }
-                if ("experiment".equalsIgnoreCase(type)) {
+                if (features == null) {
                     // file has the format
                     // SRA accession Category Sample Description
                     // in our model
                     // SRA accession, tissue, description
 
                     currentExp = new String[totHeaders];
-                    System.arraycopy(line, 0, currentExp, 0, totHeaders);
+                    System.arraycopy(tsv.toArray(), 0, currentExp, 0, totHeaders);
                     LOG.info("EEE " + currentExp[0] + ": " + currentExp[1]);
 
                     String expId = currentExp[0];
                     if (!experiments.containsKey(expId)) {
                         Item experiment = createExperiment(expId, currentExp[1], currentExp[2]);
-                        experiments.put(expId, experiment.getIdentifier());
+                        experiments.put(expId, experiment);
                     }
                     continue; // experiment file: no info on bioentity
                 }
+                String featureRef = createFeature(primaryId, featureClass, features);
+                parseScores(tsv, rowValues);
+                if (summaries) {
+                    createSummary(featureRef, type, rowValues, columnExperiments);
+                }
+                if (packed) {
+                    createProfile(featureRef, type, rowValues, columnIndexes);
+                    continue;
+                }
                 // scores start from column 2 and end at totHeaders which is headers[1,SampleNumber]
                 for (int i = 1; i < totHeaders; i++) {
-                    String col = headers[i].replace("_TPM", "");
-                    if (!experiments.containsKey(col)) {
-                        Item experiment = createExperiment(col);
-                        experiments.put(col, experiment.getIdentifier());
-                    }
-                    Item score = createRNASeqExpression(line[i], type);
-                    if (type.equalsIgnoreCase("gene")) {
-                        score.setReference("expressionOf", geneItems.get(primaryId));
-                    }
-                    if (type.equalsIgnoreCase("transcript")) {
-                        score.setReference("expressionOf", transcriptItems.get(primaryId));
+                    if (threshold != null && rowValues[i] < threshold.doubleValue()) {
+                        columnSkipped[i]++;
+                        continue;
                     }
-                    score.setReference("experiment", experiments.get(col));
+                    Item score = createRNASeqExpression(tsv.get(i), type);
+                    score.setReference("expressionOf", featureRef);
+                    score.setReference("experiment", columnExperiments[i]);
                     score.setReference("organism", organism);
                     store(score);
                 }
             }
             lineNumber++;
         }
+        if (threshold != null && !packed && columnSkipped != null) {
+            for (int i = 1; i < totHeaders; i++) {
+                Integer count = belowThreshold.get(columnExperiments[i]);
+                belowThreshold.put(columnExperiments[i],
+                        (count == null ? 0 : count.intValue()) + columnSkipped[i]);
+            }
+        }
+    }
+
+    /**
+     * Parse the scores of a row, a score that is not a number is NaN and is loaded as it is.
+     */
+    private void parseScores(TsvReader tsv, double[] values) {
+        for (int i = 1; i < totHeaders; i++) {
+            try {
+                values[i] = tsv.getDouble(i);
+            } catch (NumberFormatException e) {
+                LOG.warn("bad score for " + tsv.get(0) + ": " + tsv.get(i));
+                values[i] = Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * Create and store the RnaseqExpressionSummary of a row: min, max, mean, the experiment
+     * with the highest value and the tissue-specificity index tau (Yanai et al. 2005),
+     * computed on log2(value + 1).
+     *
+     * @param featureRef the gene or transcript
+     * @param type gene or transcript
+     * @param values the scores of the row, indexed by column
+     * @param columnExperiments the experiment of each column
+     * @throws ObjectStoreException
+     */
+    private void createSummary(String featureRef, String type, double[] values,
+            String[] columnExperiments) throws ObjectStoreException {
+        int count = 0;
+        int top = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double sum = 0;
+        for (int i = 1; i < totHeaders; i++) {
+            double value = values[i];
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            if (top == 0 || value > values[top]) {
+                top = i;
+            }
+            min = Math.min(min, value);
+            sum += value;
+            count++;
+        }
+        if (count == 0) {
+            return;
+        }
+        double max = values[top];
+        double tau = 0;
+        double logMax = Math.log(max + 1);
+        if (count > 1 && logMax > 0) {
+            for (int i = 1; i < totHeaders; i++) {
+                if (!Double.isNaN(values[i])) {
+                    tau += 1 - Math.log(values[i] + 1) / logMax;
+                }
+            }
+            tau /= count - 1;
+        }
+        Item summary = createItem("RnaseqExpressionSummary");
+        summary.setAttribute("minExpressionLevel", String.valueOf(min));
+        summary.setAttribute("maxExpressionLevel", String.valueOf(max));
+        summary.setAttribute("meanExpressionLevel", String.valueOf(sum / count));
+        summary.setAttribute("tissueSpecificity", String.valueOf(tau));
+        summary.setAttribute("numberOfExperiments", String.valueOf(count));
+        summary.setAttribute("unit", TPM);
+        summary.setAttribute("type", type);
+        summary.setReference("topExperiment", columnExperiments[top]);
+        summary.setReference("expressionOf", featureRef);
+        summary.setReference("organism", org);
+        store(summary);
+    }
+
+    /**
+     * Resolve the experiment of each score column of an expression file, creating the
+     * experiments not seen in the metadata file.
+     *
+     * @param headers the header row, first column is the bioentity
+     * @param columnIndexes set to the index of the experiment of each column in the vectors
+     * @return the experiment refIds indexed by column, the first element is null
+     * @throws ObjectStoreException
+     */
+    private String[] compileColumns(String[] headers, int[] columnIndexes)
+        throws ObjectStoreException {
+        String[] columnExperiments = new String[headers.length];
+        for (int i = 1; i < headers.length; i++) {
+            String col = headers[i].replace("_TPM", "");
+            if (!experiments.containsKey(col)) {
+                Item experiment = createExperiment(col);
+                experiments.put(col, experiment);
+            }
+            columnExperiments[i] = experiments.get(col).getIdentifier();
+            if (!experimentOrder.containsKey(col)) {
+                experimentOrder.put(col, experimentOrder.size());
+            }
+            columnIndexes[i] = experimentOrder.get(col).intValue();
+        }
+        return columnExperiments;
+    }
+
+    /**
+     * Create and store the RnaseqExpressionProfile of a row.
+     *
+     * @param featureRef the gene or transcript
+     * @param type gene or transcript
+     * @param scores the scores of the row, indexed by column
+     * @param columnIndexes the index of the experiment of each column in the vector
+     * @throws ObjectStoreException
+     */
+    private void createProfile(String featureRef, String type, double[] scores,
+            int[] columnIndexes) throws ObjectStoreException {
+        double[] values = new double[experimentOrder.size()];
+        Arrays.fill(values, Double.NaN);
+        for (int i = 1; i < totHeaders; i++) {
+            values[columnIndexes[i]] = scores[i];
+        }
+        Item profile = createItem("RnaseqExpressionProfile");
+        profile.setAttribute("expressionLevels", RnaseqExpressionVector.encode(values));
+        profile.setAttribute("unit", TPM);
+        profile.setAttribute("type", type);
+        profile.setReference("expressionOf", featureRef);
+        profile.setReference("dataSet", dataSetRef);
+        profile.setReference("organism", org);
+        store(profile);
     }
 
     /**
@@ -208,27 +407,23 @@ public class RnaseqExpressionConverter extends BioFileConverter
      * Create and store a BioEntity item on the first time called.
      *
      * @param primaryId the primaryIdentifier
-     * @param type gene or transcript
+     * @param className Gene or Transcript
+     * @param features the refIds of the features of this class already stored
+     * @return the refId of the feature
      * @throws ObjectStoreException
      */
-    private void createFeature(String primaryId, String type) throws ObjectStoreException {
-        Item feature = null;
-        LOG.debug("BIO: " + type + " -- " + primaryId);
-        if ("Gene".equals(type)) {
-            if (!geneItems.containsKey(primaryId)) {
-                feature = createItem("Gene");
-                feature.setAttribute("primaryIdentifier", primaryId);
-                store(feature);
-                geneItems.put(primaryId, feature.getIdentifier());
-            }
-        } else if ("Transcript".equals(type)) {
-            if (!transcriptItems.containsKey(primaryId)) {
-                feature = createItem("Transcript");
-                feature.setAttribute("primaryIdentifier", primaryId);
-                store(feature);
-                transcriptItems.put(primaryId, feature.getIdentifier());
-            }
+    private String createFeature(String primaryId, String className,
+            Map<String, String> features) throws ObjectStoreException {
+        String refId = features.get(primaryId);
+        if (refId == null) {
+            LOG.debug("BIO: " + className + " -- " + primaryId);
+            Item feature = createItem(className);
+            feature.setAttribute("primaryIdentifier", primaryId);
+            store(feature);
+            refId = feature.getIdentifier();
+            features.put(primaryId, refId);
         }
+        return refId;
     }
 
     /**
@@ -243,7 +438,7 @@ public class RnaseqExpressionConverter extends BioFileConverter
     }
 
     /**
-     * Create and store an Experiment item on the first time called.
+     * Create an Experiment item on the first time called, stored in close().
      *
      * used if an experiment has not been previously found in the metadata (experiment) file
      *
@@ -258,12 +453,11 @@ public class RnaseqExpressionConverter extends BioFileConverter
         e.setAttribute("SRAaccession", name);
         e.setAttribute("category", CATEGORY);
         e.setReference("dataSet", dataSetRef);
-        store(e);
         return e;
     }
 
     /**
-     * Create and store an Experiment item on the first time called.
+     * Create an Experiment item on the first time called, stored in close().
      *
      * @param name the experiment name (SRA accession)
      * @param tissue the tissue/organ
@@ -278,12 +472,43 @@ public class RnaseqExpressionConverter extends BioFileConverter
         e.setAttribute("tissue", tissue);
         e.setAttribute("description", description);
         e.setReference("dataSet", dataSetRef);
-        store(e);
         return e;
     }
 
     /**
-     * create the experiments datasource and dataset
+     * Store the experiments, with the sparse mode threshold and counts if set, and the
+     * dataset, with the experiment order of the packed vectors if set.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws Exception {
+        for (Item experiment : experiments.values()) {
+            if (threshold != null && !packed) {
+                String refId = experiment.getIdentifier();
+                experiment.setAttribute("detectionThreshold", threshold.toString());
+                experiment.setAttribute("genesBelowThreshold",
+                        String.valueOf(getCount(genesBelowThreshold, refId)));
+                experiment.setAttribute("transcriptsBelowThreshold",
+                        String.valueOf(getCount(transcriptsBelowThreshold, refId)));
+            }
+            store(experiment);
+        }
+        if (packed) {
+            dataSet.setAttribute("experimentOrder", StringUtils.join(experimentOrder.keySet(),
+                    RnaseqExpressionVector.ORDER_SEPARATOR));
+        }
+        store(dataSet);
+        super.close();
+    }
+
+    private int getCount(Map<String, Integer> counts, String refId) {
+        Integer count = counts.get(refId);
+        return count == null ? 0 : count.intValue();
+    }
+
+    /**
+     * create the experiments datasource and dataset, the dataset is stored in close()
      *
      */
     private void createDataSource() throws ObjectStoreException {
@@ -292,10 +517,9 @@ public class RnaseqExpressionConverter extends BioFileConverter
         dataSource.setAttribute("name", EXP_DATASOURCE);
         store(dataSource);
 
-        Item dataSet = createItem("DataSet");
+        dataSet = createItem("DataSet");
         dataSet.setAttribute("name", EXP_DATASET);
         dataSet.setReference("dataSource", dataSource.getIdentifier());
-        store(dataSet);
 
         dataSetRef = dataSet.getIdentifier(); // used in experiment
     }
@@ -0,0 +1,360 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.apache.tools.ant.BuildException;
+import org.intermine.model.bio.DataSet;
+import org.intermine.model.bio.DataSource;
+import org.intermine.model.bio.Gene;
+import org.intermine.model.bio.Organism;
+import org.intermine.model.bio.RnaseqExperiment;
+import org.intermine.model.bio.RnaseqExpression;
+import org.intermine.model.bio.SequenceFeature;
+import org.intermine.model.bio.Transcript;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.task.FileDirectDataLoaderTask;
+
+/**
+ * A task that reads the RNA-seq expression matrices read by RnaseqExpressionConverter and
+ * stores the RnaseqExpression objects directly in the production ObjectStore, skipping the
+ * items database.  It stores the experiments, genes, transcripts and expression values the
+ * converter stores by default: every value of the matrices, no threshold, packed vectors or
+ * summaries.  The genes and transcripts are in the converter's MTGD data set, as the converter
+ * adds them to it when it stores them.  The expression values are parsed into Doubles here, the
+ * converter's are the Strings of the file, parsed the same way when its items are loaded.
+ *
+ * The rnaseq-expression source uses the converter.  The task is used instead when
+ * rnaseq-expression.properties has have.file.custom.direct = true in place of
+ * have.file.custom.tgt, and the source in project.xml names the task:
+ *
+ * <pre>
+ * &lt;source name="rnaseq-expression" type="rnaseq-expression"&gt;
+ *   &lt;property name="rnaseq-expression.loaderClassName"
+ *             value="org.intermine.bio.dataconversion.RnaseqExpressionLoaderTask"/&gt;
+ *   &lt;property name="rnaseq-expression.taxonId" value="3880"/&gt;
+ *   &lt;property name="src.data.dir" location="/data/rnaseq-expression"/&gt;
+ * &lt;/source&gt;
+ * </pre>
+ *
+ * @author sc
+ */
+public class RnaseqExpressionLoaderTask extends FileDirectDataLoaderTask
+{
+    private static final Logger LOG = Logger.getLogger(RnaseqExpressionLoaderTask.class);
+
+    private static final String DATASET_TITLE = "RNA-seq expression";
+    private static final String DATASOURCE_NAME = "MTGD";
+    private static final String EXP_DATASET = "SRA";
+    private static final String EXP_DATASOURCE = "NCBI";
+    private static final String CATEGORY = "RNA-Seq";
+    private static final String TPM = "FPKM";
+
+    private String taxonId = "3880";
+    private Organism org;
+    private DataSet dataSet;
+    // of the genes and transcripts
+    private DataSet featureDataSet;
+    private int storeCount = 0;
+
+    private Map<String, RnaseqExperiment> experiments = new HashMap<String, RnaseqExperiment>();
+    private Map<String, SequenceFeature> geneItems = new HashMap<String, SequenceFeature>();
+    private Map<String, SequenceFeature> transcriptItems =
+            new HashMap<String, SequenceFeature>();
+
+    //Set this if we want to do some testing...
+    private File[] files = null;
+
+    /**
+     * Set the taxon id of the organism the expression values belong to.  Default is 3880.
+     * @param taxonId the taxon id
+     */
+    public void setTaxonId(String taxonId) {
+        this.taxonId = taxonId;
+    }
+
+    /**
+     * Directly set the array of files to read from.  Use this for testing with junit.
+     * @param files the File objects
+     */
+    protected void setFileArray(File[] files) {
+        this.files = files;
+    }
+
+    /**
+     * Process and load all of the expression files.
+     */
+    @Override
+    public void process() {
+        long start = System.currentTimeMillis();
+        try {
+            super.process();
+            getIntegrationWriter().commitTransaction();
+            getIntegrationWriter().beginTransaction();
+            getDirectDataLoader().close();
+        } catch (ObjectStoreException e) {
+            throw new BuildException("failed to store object", e);
+        }
+        long now = System.currentTimeMillis();
+        LOG.info("Finished dataloading " + storeCount + " objects at " + ((60000L * storeCount)
+                    / Math.max(1, now - start)) + " objects per minute (" + (now - start)
+                + " ms total) for source " + sourceName);
+    }
+
+    /**
+     * @throws BuildException if an ObjectStore method fails
+     */
+    @Override
+    public void execute() {
+        // don't configure dynamic attributes if this is a unit test!
+        if (getProject() != null) {
+            configureDynamicAttributes(this);
+        }
+        if (files != null) {
+            // setFileArray() is used only for testing
+            for (int i = 0; i < files.length; i++) {
+                processFile(files[i]);
+            }
+        } else {
+            // this will call processFile() for each file
+            super.execute();
+        }
+    }
+
+    /**
+     * Be sure to close the data loader so the last batch gets stored.  Only needed for tests,
+     * process() does that for the live builds.
+     * @throws ObjectStoreException if we can't store to db
+     */
+    public void close() throws ObjectStoreException {
+        getDirectDataLoader().close();
+    }
+
+    /**
+     * Handles each expression file, see RnaseqExpressionConverter for the expected names.
+     *
+     * @param file the File to process.
+     * @throws BuildException if the is a problem
+     */
+    @Override
+    public void processFile(File file) {
+        String type;
+        if (file.getName().contains("gene")) {
+            type = "gene";
+        } else if (file.getName().contains("transcript")) {
+            type = "transcript";
+        } else if (file.getName().contains("experiment")) {
+            type = "experiment";
+        } else {
+            throw new IllegalArgumentException("Unexpected file: " + file.getName());
+        }
+        LOG.info("Loading RNAseq expressions (" + type + ") from " + file.getName());
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            processReader(reader, type);
+        } catch (FileNotFoundException e) {
+            throw new BuildException("problem reading file - file not found: " + file, e);
+        } catch (ObjectStoreException e) {
+            throw new BuildException("ObjectStore problem while processing: " + file, e);
+        } catch (IOException e) {
+            throw new BuildException("error while reading: " + file, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    LOG.warn("error while closing FileReader for: " + file, e);
+                }
+            }
+        }
+    }
+
+    private void processReader(BufferedReader reader, String type)
+        throws IOException, ObjectStoreException {
+        // every column is a score, they are parsed as numbers without making Strings
+        TsvReader tsv = new TsvReader(reader);
+        String[] headers = null;
+        int totHeaders = 0;
+        // experiments by column, resolved once from the header row
+        RnaseqExperiment[] columnExperiments = null;
+        boolean isGene = "gene".equals(type);
+
+        while (tsv.next()) {
+            if (headers == null) {
+                String[] line = tsv.toArray();
+                // column headers - strip off any extra columns
+                int end = 0;
+                while (end < line.length && StringUtils.isNotEmpty(line[end])) {
+                    end++;
+                }
+                headers = new String[end];
+                System.arraycopy(line, 0, headers, 0, end);
+                totHeaders = headers.length;
+                if (!"experiment".equals(type)) {
+                    columnExperiments = compileColumns(headers);
+                }
+                continue;
+            }
+            String primaryId = tsv.get(0);
+            // if empty lines at the end of the file
+            if (StringUtils.isEmpty(primaryId)) {
+                break;
+            }
+            if ("experiment".equals(type)) {
+                // SRA accession, tissue, description
+                if (!experiments.containsKey(primaryId)) {
+                    experiments.put(primaryId, createExperiment(primaryId, tsv.get(1),
+                            tsv.get(2)));
+                }
+                continue;
+            }
+            SequenceFeature feature = getFeature(primaryId, isGene);
+            for (int i = 1; i < totHeaders; i++) {
+                RnaseqExpression score =
+                        getDirectDataLoader().createObject(RnaseqExpression.class);
+                try {
+                    score.setExpressionLevel(Double.valueOf(tsv.getDouble(i)));
+                } catch (NumberFormatException e) {
+                    throw new BuildException("bad expression value for " + primaryId + " in "
+                            + headers[i] + ": " + tsv.get(i), e);
+                }
+                score.setUnit(TPM);
+                score.setType(type);
+                score.setExpressionOf(feature);
+                score.setExperiment(columnExperiments[i]);
+                score.setOrganism(getOrganism());
+                getDirectDataLoader().store(score);
+                storeCount++;
+            }
+        }
+    }
+
+    /**
+     * Resolve the experiment of each score column, creating the experiments not seen in the
+     * metadata file.  The first element is null.
+     */
+    private RnaseqExperiment[] compileColumns(String[] headers) throws ObjectStoreException {
+        RnaseqExperiment[] columnExperiments = new RnaseqExperiment[headers.length];
+        for (int i = 1; i < headers.length; i++) {
+            String col = headers[i].replace("_TPM", "");
+            RnaseqExperiment experiment = experiments.get(col);
+            if (experiment == null) {
+                experiment = createExperiment(col, null, null);
+                experiments.put(col, experiment);
+            }
+            columnExperiments[i] = experiment;
+        }
+        return columnExperiments;
+    }
+
+    /**
+     * Get and store() the Gene or Transcript with the given primaryIdentifier, in the
+     * converter's data set.
+     */
+    private SequenceFeature getFeature(String primaryId, boolean isGene)
+        throws ObjectStoreException {
+        Map<String, SequenceFeature> features = isGene ? geneItems : transcriptItems;
+        SequenceFeature feature = features.get(primaryId);
+        if (feature == null) {
+            if (isGene) {
+                feature = getDirectDataLoader().createObject(Gene.class);
+            } else {
+                feature = getDirectDataLoader().createObject(Transcript.class);
+            }
+            feature.setPrimaryIdentifier(primaryId);
+            feature.addDataSets(getFeatureDataSet());
+            getDirectDataLoader().store(feature);
+            storeCount++;
+            features.put(primaryId, feature);
+        }
+        return feature;
+    }
+
+    /**
+     * Create and store a RnaseqExperiment.  tissue and description are null if the
+     * experiment has not been previously found in the metadata (experiment) file.
+     */
+    private RnaseqExperiment createExperiment(String name, String tissue, String description)
+        throws ObjectStoreException {
+        RnaseqExperiment e = getDirectDataLoader().createObject(RnaseqExperiment.class);
+        e.setSRAaccession(name);
+        if (tissue == null) {
+            LOG.warn("EXPERIMENT " + name
+                    + " missing tissue information: should you check the consistency of naming "
+                    + "for your data files?");
+            e.setCategory(CATEGORY);
+        } else {
+            e.setTissue(tissue);
+            e.setDescription(description);
+        }
+        e.setDataSet(getDataSet());
+        getDirectDataLoader().store(e);
+        storeCount++;
+        return e;
+    }
+
+    private Organism getOrganism() throws ObjectStoreException {
+        if (org == null) {
+            org = getDirectDataLoader().createObject(Organism.class);
+            org.setTaxonId(taxonId);
+            getDirectDataLoader().store(org);
+            storeCount++;
+        }
+        return org;
+    }
+
+    /**
+     * create the experiments datasource and dataset
+     */
+    private DataSet getDataSet() throws ObjectStoreException {
+        if (dataSet == null) {
+            DataSource dataSource = getDirectDataLoader().createObject(DataSource.class);
+            dataSource.setName(EXP_DATASOURCE);
+            getDirectDataLoader().store(dataSource);
+
+            dataSet = getDirectDataLoader().createObject(DataSet.class);
+            dataSet.setName(EXP_DATASET);
+            dataSet.setDataSource(dataSource);
+            getDirectDataLoader().store(dataSet);
+            storeCount += 2;
+        }
+        return dataSet;
+    }
+
+    /**
+     * create the datasource and dataset of the genes and transcripts, those the converter
+     * gives its features
+     */
+    private DataSet getFeatureDataSet() throws ObjectStoreException {
+        if (featureDataSet == null) {
+            DataSource dataSource = getDirectDataLoader().createObject(DataSource.class);
+            dataSource.setName(DATASOURCE_NAME);
+            getDirectDataLoader().store(dataSource);
+
+            featureDataSet = getDirectDataLoader().createObject(DataSet.class);
+            featureDataSet.setName(DATASET_TITLE);
+            featureDataSet.setDataSource(dataSource);
+            getDirectDataLoader().store(featureDataSet);
+            storeCount += 2;
+        }
+        return featureDataSet;
+    }
+}
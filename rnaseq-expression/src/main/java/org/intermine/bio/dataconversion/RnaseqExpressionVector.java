@@ -0,0 +1,85 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encodes and decodes the packed expression vectors stored in
+ * RnaseqExpressionProfile.expressionLevels.  A vector holds one double per experiment,
+ * in the order given by DataSet.experimentOrder, base64 encoded.  Experiments with no value
+ * are NaN, and vectors written before an experiment was added are shorter than the order.
+ *
+ * A value is the double its string in the matrix parses to, the same value the loader task
+ * stores in RnaseqExpression.expressionLevel.  Only the formatting of the string, e.g.
+ * trailing zeros, is lost.
+ *
+ * @author sc
+ */
+public final class RnaseqExpressionVector
+{
+    /**
+     * Separator of the SRA accessions in DataSet.experimentOrder.
+     */
+    public static final String ORDER_SEPARATOR = ",";
+
+    private RnaseqExpressionVector() {
+        // don't instantiate
+    }
+
+    /**
+     * Pack expression values.
+     * @param values the values, indexed by experiment order, NaN if missing
+     * @return the packed vector
+     */
+    public static String encode(double[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+        for (double value : values) {
+            buffer.putDouble(value);
+        }
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    /**
+     * Unpack expression values.
+     * @param packed the packed vector
+     * @return the values, indexed by experiment order, NaN if missing
+     */
+    public static double[] decode(String packed) {
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(packed));
+        double[] values = new double[buffer.remaining() / 8];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buffer.getDouble();
+        }
+        return values;
+    }
+
+    /**
+     * Unpack expression values by experiment.
+     * @param packed the packed vector
+     * @param experimentOrder the DataSet.experimentOrder the vector was written with
+     * @return the values by SRA accession, in experiment order, missing values left out
+     */
+    public static Map<String, Double> decode(String packed, String experimentOrder) {
+        double[] values = decode(packed);
+        String[] experiments = experimentOrder.split(ORDER_SEPARATOR);
+        Map<String, Double> profile = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < values.length && i < experiments.length; i++) {
+            if (!Double.isNaN(values[i])) {
+                profile.put(experiments[i], Double.valueOf(values[i]));
+            }
+        }
+        return profile;
+    }
+}
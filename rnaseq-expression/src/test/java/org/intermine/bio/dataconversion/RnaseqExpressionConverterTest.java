@@ -0,0 +1,230 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.intermine.dataconversion.ItemsTestCase;
+import org.intermine.dataconversion.MockItemWriter;
+import org.intermine.metadata.Model;
+import org.intermine.model.fulldata.Item;
+
+public class RnaseqExpressionConverterTest extends ItemsTestCase
+{
+    private static final int SAMPLES = 100;
+    private static final int GENES = 1000;
+    // run the benchmark with -Dmedicmine.benchmark=true, it is skipped otherwise
+    private static final boolean BENCHMARK = Boolean.getBoolean("medicmine.benchmark");
+    private static final int BENCHMARK_GENES = 20000;
+    private static final int ROUNDS = 3;
+
+    Model model = Model.getInstanceByName("genomic");
+    RnaseqExpressionConverter converter;
+    MockItemWriter itemWriter;
+
+    public RnaseqExpressionConverterTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        itemWriter = new MockItemWriter(new HashMap<String, Item>());
+        converter = new RnaseqExpressionConverter(itemWriter, model);
+    }
+
+    public void testColumnsReferenceTheirExperiment() throws Exception {
+        String matrix = "gene\tSRR1_TPM\tSRR2_TPM\n"
+            + "Medtr1g005000\t0.5\t12.25\n";
+        converter.setCurrentFile(new File("1.RNAseq-expression.gene.tsv"));
+        converter.process(new StringReader(matrix));
+        converter.close();
+
+        Map<String, String> accessions = new HashMap<String, String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("RnaseqExperiment".equals(item.getClassName())) {
+                accessions.put(item.getIdentifier(),
+                        item.getAttribute("SRAaccession").getValue());
+            }
+            // summaries are off by default
+            assertFalse("RnaseqExpressionSummary".equals(item.getClassName()));
+        }
+        int scores = 0;
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("RnaseqExpression".equals(item.getClassName())) {
+                String level = item.getAttribute("expressionLevel").getValue();
+                String experiment = accessions.get(item.getReference("experiment").getRefId());
+                assertEquals("0.5".equals(level) ? "SRR1" : "SRR2", experiment);
+                scores++;
+            }
+        }
+        assertEquals(2, scores);
+    }
+
+    public void testSparseMode() throws Exception {
+        String matrix = "gene\tSRR1_TPM\tSRR2_TPM\n"
+            + "Medtr1g005000\t0.0\t12.25\n"
+            + "Medtr1g005010\t0.1\t0.4\n";
+        converter.setRnaseqExpressionThreshold("0.5");
+        converter.setCurrentFile(new File("1.RNAseq-expression.gene.tsv"));
+        converter.process(new StringReader(matrix));
+        converter.close();
+
+        int scores = 0;
+        Map<String, String> skipped = new HashMap<String, String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("RnaseqExpression".equals(item.getClassName())) {
+                assertEquals("12.25", item.getAttribute("expressionLevel").getValue());
+                scores++;
+            } else if ("RnaseqExperiment".equals(item.getClassName())) {
+                assertEquals("0.5", item.getAttribute("detectionThreshold").getValue());
+                assertEquals("0", item.getAttribute("transcriptsBelowThreshold").getValue());
+                skipped.put(item.getAttribute("SRAaccession").getValue(),
+                        item.getAttribute("genesBelowThreshold").getValue());
+            }
+        }
+        assertEquals(1, scores);
+        assertEquals("2", skipped.get("SRR1"));
+        assertEquals("1", skipped.get("SRR2"));
+    }
+
+    public void testPackedMode() throws Exception {
+        converter.setRnaseqExpressionPacked("true");
+        converter.setCurrentFile(new File("1.RNAseq-expression.gene.tsv"));
+        converter.process(new StringReader("gene\tSRR1_TPM\tSRR2_TPM\n"
+                + "Medtr1g005000\t0.5\t123456789.123\n"));
+        converter.setCurrentFile(new File("1.RNAseq-expression.transcript.tsv"));
+        converter.process(new StringReader("transcript\tSRR3_TPM\tSRR1_TPM\n"
+                + "Medtr1g005000.1\t7.0\t0.25\n"));
+        converter.close();
+
+        String experimentOrder = null;
+        Map<String, String> vectors = new HashMap<String, String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            assertFalse("RnaseqExpression".equals(item.getClassName()));
+            if ("DataSet".equals(item.getClassName()) && item.hasAttribute("experimentOrder")) {
+                experimentOrder = item.getAttribute("experimentOrder").getValue();
+            } else if ("RnaseqExpressionProfile".equals(item.getClassName())) {
+                vectors.put(item.getAttribute("type").getValue(),
+                        item.getAttribute("expressionLevels").getValue());
+            }
+        }
+        assertEquals("SRR1,SRR2,SRR3", experimentOrder);
+
+        Map<String, Double> gene = RnaseqExpressionVector.decode(vectors.get("gene"),
+                experimentOrder);
+        assertEquals(2, gene.size());
+        assertEquals(Double.valueOf(0.5), gene.get("SRR1"));
+        // a large FPKM a float can't hold, it would be 123456792
+        assertEquals(Double.valueOf("123456789.123"), gene.get("SRR2"));
+
+        Map<String, Double> transcript = RnaseqExpressionVector.decode(
+                vectors.get("transcript"), experimentOrder);
+        assertEquals(2, transcript.size());
+        assertEquals(Double.valueOf(0.25), transcript.get("SRR1"));
+        assertEquals(Double.valueOf(7.0), transcript.get("SRR3"));
+    }
+
+    public void testSummary() throws Exception {
+        String matrix = "gene\tSRR1_TPM\tSRR2_TPM\tSRR3_TPM\n"
+            + "Medtr1g005000\t0.0\t15.0\t3.0\n"
+            + "Medtr1g005010\t4.0\t4.0\t4.0\n";
+        converter.setRnaseqExpressionSummaries("true");
+        converter.setCurrentFile(new File("1.RNAseq-expression.gene.tsv"));
+        converter.process(new StringReader(matrix));
+        converter.close();
+
+        Map<String, org.intermine.xml.full.Item> summaries =
+            new HashMap<String, org.intermine.xml.full.Item>();
+        Map<String, String> accessions = new HashMap<String, String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("RnaseqExpressionSummary".equals(item.getClassName())) {
+                summaries.put(item.getAttribute("maxExpressionLevel").getValue(), item);
+            } else if ("RnaseqExperiment".equals(item.getClassName())) {
+                accessions.put(item.getIdentifier(),
+                        item.getAttribute("SRAaccession").getValue());
+            }
+        }
+        assertEquals(2, summaries.size());
+        org.intermine.xml.full.Item specific = summaries.get("15.0");
+        assertEquals("0.0", specific.getAttribute("minExpressionLevel").getValue());
+        assertEquals("6.0", specific.getAttribute("meanExpressionLevel").getValue());
+        assertEquals("SRR2", accessions.get(specific.getReference("topExperiment").getRefId()));
+        // tau = (1 + 0 + (1 - log 4 / log 16)) / 2
+        assertEquals(0.75, Double.parseDouble(
+                specific.getAttribute("tissueSpecificity").getValue()), 1e-9);
+        org.intermine.xml.full.Item flat = summaries.get("4.0");
+        assertEquals(0.0, Double.parseDouble(
+                flat.getAttribute("tissueSpecificity").getValue()), 1e-9);
+    }
+
+    /**
+     * Converts a GENES x SAMPLES matrix, every column resolved once for the file.
+     */
+    public void testProcessMatrix() throws Exception {
+        converter.setCurrentFile(new File("1.RNAseq-expression.gene.tsv"));
+        converter.process(new StringReader(matrix(GENES)));
+        converter.close();
+
+        int scores = 0;
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            if ("RnaseqExpression".equals(item.getClassName())) {
+                scores++;
+            }
+        }
+        assertEquals(GENES * SAMPLES, scores);
+    }
+
+    /**
+     * Times the conversion of a BENCHMARK_GENES x SAMPLES matrix and prints the fastest of a
+     * few rounds, so the converter is timed after warming up.
+     */
+    public void testBenchmarkMatrix() throws Exception {
+        if (!BENCHMARK) {
+            return;
+        }
+        String matrix = matrix(BENCHMARK_GENES);
+        long fastest = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            setUp();
+            converter.setCurrentFile(new File("1.RNAseq-expression.gene.tsv"));
+            long start = System.nanoTime();
+            converter.process(new StringReader(matrix));
+            converter.close();
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        long values = (long) BENCHMARK_GENES * SAMPLES;
+        System.out.println(String.format("RnaseqExpressionConverter %d x %d matrix in %d ms, "
+                + "%.0f values/s", BENCHMARK_GENES, SAMPLES, fastest / 1000000,
+                values / (fastest / 1e9)));
+    }
+
+    /**
+     * @return a genes x SAMPLES matrix
+     */
+    private String matrix(int genes) {
+        StringBuffer matrix = new StringBuffer("gene");
+        for (int s = 0; s < SAMPLES; s++) {
+            matrix.append("\tSRR" + s + "_TPM");
+        }
+        matrix.append("\n");
+        for (int g = 0; g < genes; g++) {
+            matrix.append("Medtr" + g + "g000000");
+            for (int s = 0; s < SAMPLES; s++) {
+                matrix.append("\t" + ((g * s) % 1000) / 10.0);
+            }
+            matrix.append("\n");
+        }
+        return matrix.toString();
+    }
+}
@@ -0,0 +1,214 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import org.intermine.dataconversion.MockItemWriter;
+import org.intermine.metadata.Model;
+import org.intermine.model.InterMineObject;
+import org.intermine.model.bio.DataSet;
+import org.intermine.model.bio.Gene;
+import org.intermine.model.bio.RnaseqExperiment;
+import org.intermine.model.bio.RnaseqExpression;
+import org.intermine.model.bio.SequenceFeature;
+import org.intermine.model.bio.Transcript;
+import org.intermine.model.fulldata.Item;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.ObjectStoreWriterFactory;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.SingletonResults;
+
+/**
+ * Loads the matrices of RnaseqExpressionConverterTest with the task and with the converter,
+ * and checks both give the same objects.
+ */
+public class RnaseqExpressionLoaderTaskTest extends TestCase
+{
+    private ObjectStoreWriter osw;
+    private File[] files;
+
+    public void setUp() throws Exception {
+        osw = ObjectStoreWriterFactory.getObjectStoreWriter("osw.bio-test");
+        osw.getObjectStore().flushObjectById();
+        files = writeFiles();
+    }
+
+    public void testSameAsConverter() throws Exception {
+        RnaseqExpressionLoaderTask task = new RnaseqExpressionLoaderTask();
+        task.setIntegrationWriterAlias("integration.bio-test");
+        task.setSourceName("rnaseq-expression-test");
+        task.setFileArray(files);
+        task.execute();
+        task.close();
+
+        ObjectStore os = osw.getObjectStore();
+        Set<String> loaded = new HashSet<String>();
+        for (Object o : objects(os, RnaseqExpression.class)) {
+            RnaseqExpression score = (RnaseqExpression) o;
+            loaded.add(score.getType() + " " + score.getExpressionOf().getPrimaryIdentifier()
+                    + " " + score.getExperiment().getSRAaccession() + " "
+                    + score.getExpressionLevel() + " " + score.getUnit() + " "
+                    + score.getOrganism().getTaxonId());
+        }
+        for (Object o : objects(os, RnaseqExperiment.class)) {
+            RnaseqExperiment experiment = (RnaseqExperiment) o;
+            loaded.add(experiment.getSRAaccession() + " " + experiment.getTissue() + " "
+                    + experiment.getDescription() + " " + experiment.getCategory() + " "
+                    + experiment.getDataSet().getName());
+        }
+        for (Object o : objects(os, Gene.class)) {
+            loaded.add("Gene " + feature((SequenceFeature) o));
+        }
+        for (Object o : objects(os, Transcript.class)) {
+            loaded.add("Transcript " + feature((SequenceFeature) o));
+        }
+
+        assertEquals(convert(), loaded);
+    }
+
+    /**
+     * @return the objects the converter stores, described as testSameAsConverter() describes
+     * the objects the task stores
+     */
+    private Set<String> convert() throws Exception {
+        MockItemWriter itemWriter = new MockItemWriter(new HashMap<String, Item>());
+        RnaseqExpressionConverter converter = new RnaseqExpressionConverter(itemWriter,
+                Model.getInstanceByName("genomic"));
+        for (File file : files) {
+            converter.setCurrentFile(file);
+            FileReader reader = new FileReader(file);
+            converter.process(reader);
+            reader.close();
+        }
+        converter.close();
+
+        Map<String, org.intermine.xml.full.Item> items =
+            new HashMap<String, org.intermine.xml.full.Item>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            items.put(item.getIdentifier(), item);
+        }
+        Set<String> converted = new HashSet<String>();
+        for (org.intermine.xml.full.Item item : itemWriter.getItems()) {
+            String className = item.getClassName();
+            if ("RnaseqExpression".equals(className)) {
+                // the value is parsed as the items are loaded
+                converted.add(value(item, "type") + " "
+                        + value(items.get(ref(item, "expressionOf")), "primaryIdentifier") + " "
+                        + value(items.get(ref(item, "experiment")), "SRAaccession") + " "
+                        + Double.valueOf(value(item, "expressionLevel")) + " "
+                        + value(item, "unit") + " "
+                        + value(items.get(ref(item, "organism")), "taxonId"));
+            } else if ("RnaseqExperiment".equals(className)) {
+                converted.add(value(item, "SRAaccession") + " " + value(item, "tissue") + " "
+                        + value(item, "description") + " " + value(item, "category") + " "
+                        + value(items.get(ref(item, "dataSet")), "name"));
+            } else if ("Gene".equals(className) || "Transcript".equals(className)) {
+                // added by the converter as the feature is stored
+                Set<String> dataSets = new TreeSet<String>();
+                if (item.getCollection("dataSets") != null) {
+                    for (String refId : item.getCollection("dataSets").getRefIds()) {
+                        dataSets.add(value(items.get(refId), "name"));
+                    }
+                }
+                converted.add(className + " " + value(item, "primaryIdentifier") + " "
+                        + dataSets);
+            }
+        }
+        return converted;
+    }
+
+    private String feature(SequenceFeature feature) {
+        Set<String> dataSets = new TreeSet<String>();
+        for (DataSet dataSet : feature.getDataSets()) {
+            dataSets.add(dataSet.getName());
+        }
+        return feature.getPrimaryIdentifier() + " " + dataSets;
+    }
+
+    private String value(org.intermine.xml.full.Item item, String name) {
+        return item.hasAttribute(name) ? item.getAttribute(name).getValue() : null;
+    }
+
+    private String ref(org.intermine.xml.full.Item item, String name) {
+        return item.getReference(name).getRefId();
+    }
+
+    private SingletonResults objects(ObjectStore os, Class<?> c) {
+        Query q = new Query();
+        QueryClass qc = new QueryClass(c);
+        q.addFrom(qc);
+        q.addToSelect(qc);
+        return os.executeSingleton(q);
+    }
+
+    /**
+     * @return the experiment metadata and the gene and transcript matrices of
+     * RnaseqExpressionConverterTest, SRR3 isn't in the metadata
+     */
+    private File[] writeFiles() throws Exception {
+        File dir = File.createTempFile("rnaseq", "");
+        dir.delete();
+        dir.mkdir();
+        File[] written = new File[] {new File(dir, "1.RNAseq-expression.experiment.tsv"),
+            new File(dir, "1.RNAseq-expression.gene.tsv"),
+            new File(dir, "1.RNAseq-expression.transcript.tsv")};
+        String[] contents = new String[] {
+            "SRA\tTissue\tDescription\n"
+                + "SRR1\tleaf\tLeaves, 28 days\n"
+                + "SRR2\troot\tRoots, 28 days\n",
+            "gene\tSRR1_TPM\tSRR2_TPM\n"
+                + "Medtr1g005000\t0.5\t12.25\n"
+                + "Medtr1g005010\t0.1\t0.4\n",
+            "transcript\tSRR3_TPM\tSRR1_TPM\n"
+                + "Medtr1g005000.1\t7.0\t0.25\n"};
+        for (int i = 0; i < written.length; i++) {
+            FileWriter writer = new FileWriter(written[i]);
+            writer.write(contents[i]);
+            writer.close();
+        }
+        return written;
+    }
+
+    public void tearDown() throws Exception {
+        for (File file : files) {
+            file.delete();
+        }
+        files[0].getParentFile().delete();
+
+        Query q = new Query();
+        QueryClass qc = new QueryClass(InterMineObject.class);
+        q.addFrom(qc);
+        q.addToSelect(qc);
+        ObjectStore os = osw.getObjectStore();
+        SingletonResults res = os.executeSingleton(q);
+        Iterator<Object> resIter = res.iterator();
+        osw.beginTransaction();
+        while (resIter.hasNext()) {
+            InterMineObject o = (InterMineObject) resIter.next();
+            osw.delete(o);
+        }
+        osw.commitTransaction();
+        osw.close();
+    }
+}